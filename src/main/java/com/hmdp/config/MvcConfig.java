@@ -1,7 +1,11 @@
 package com.hmdp.config;
 
+import com.hmdp.utils.AdminInterceptor;
 import com.hmdp.utils.LoginInterceptor;
 import com.hmdp.utils.RefreshTokenInterceptor;
+import com.hmdp.utils.SeckillRateLimitInterceptor;
+import com.hmdp.utils.SeckillRateLimiter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
@@ -15,6 +19,13 @@ public class MvcConfig implements WebMvcConfigurer {
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
+    // 运维接口的口令
+    @Value("${hmdp.admin.token:}")
+    private String adminToken;
+
     @Override
     public void addInterceptors(InterceptorRegistry registry) {
         registry.addInterceptor(new LoginInterceptor())
@@ -25,10 +36,30 @@ public class MvcConfig implements WebMvcConfigurer {
                         "/shop/**",
                         "/shop-type/**",
                         "/upload/**",
-                        "/voucher/**"
+                        "/voucher/**",
+                        "/voucher-order/partitions",
+                        "/voucher-order/admission",
+                        "/voucher-order/dead-letter",
+                        "/voucher-order/dead-letter/**"
                 ).order(1);// order越小越先拦截
 
         registry.addInterceptor(new RefreshTokenInterceptor(stringRedisTemplate))
                 .addPathPatterns("/**").order(0);
+
+        // 运维接口只有带口令的请求能调用，不需要用户登录
+        registry.addInterceptor(new AdminInterceptor(adminToken))
+                // 单独配置券的限流系数
+                .addPathPatterns("/voucher/seckill/*/rate-factor")
+                // 秒杀券预热
+                .addPathPatterns("/voucher/seckill/preheat")
+                // 手动触发库存对账，自动修正时会改Redis库存
+                .addPathPatterns("/voucher/seckill/reconcile")
+                // 死信订单的查询和重放
+                .addPathPatterns("/voucher-order/dead-letter", "/voucher-order/dead-letter/**")
+                .order(2);
+
+        // 秒杀限流在刷新token之前，被拒绝的请求不访问Redis
+        registry.addInterceptor(new SeckillRateLimitInterceptor(seckillRateLimiter))
+                .addPathPatterns("/voucher-order/seckill/*").order(-1);
     }
 }
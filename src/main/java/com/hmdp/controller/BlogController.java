@@ -14,6 +14,9 @@ import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -71,10 +74,18 @@ public class BlogController {
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
+        // 查询用户，一页的作者一次查数据库；用户信息修改时没有删缓存的地方，所以不缓存
+        if (records.isEmpty()) {
+            return Result.ok(records);
+        }
+        Set<Long> userIds = records.stream().map(Blog::getUserId).collect(Collectors.toSet());
+        Map<Long, User> users = userService.listByIds(userIds).stream()
+                .collect(Collectors.toMap(User::getId, user -> user));
         records.forEach(blog ->{
-            Long userId = blog.getUserId();
-            User user = userService.getById(userId);
+            User user = users.get(blog.getUserId());
+            if (user == null) {
+                return;
+            }
             blog.setName(user.getNickName());
             blog.setIcon(user.getIcon());
         });
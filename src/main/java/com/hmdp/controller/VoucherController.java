@@ -3,7 +3,9 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillRateLimiter;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
@@ -23,6 +25,12 @@ public class VoucherController {
     @Resource
     private IVoucherService voucherService;
 
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private SeckillRateLimiter seckillRateLimiter;
+
     /**
      * 新增普通券
      * @param voucher 优惠券信息
@@ -45,6 +53,47 @@ public class VoucherController {
         return Result.ok(voucher.getId());
     }
 
+    /**
+     * 把没结束的秒杀券预热到Redis，活动开始前调用
+     * @return 预热的券数量
+     */
+    @PostMapping("seckill/preheat")
+    public Result preheatSeckillVouchers() {
+        return Result.ok(seckillVoucherService.preheatSeckillVouchers());
+    }
+
+    /**
+     * 立即对账秒杀券的Redis库存和数据库库存
+     * @return 有偏差的券
+     */
+    @PostMapping("seckill/reconcile")
+    public Result reconcileStock() {
+        return Result.ok(seckillVoucherService.reconcileStock());
+    }
+
+    /**
+     * 查询最近一次库存对账的结果
+     * @return 有偏差的券
+     */
+    @GetMapping("seckill/stock-drift")
+    public Result queryStockDrift() {
+        return Result.ok(seckillVoucherService.queryStockDrift());
+    }
+
+    /**
+     * 单独设置秒杀券的限流系数，每秒放进来的请求数约为剩余库存乘以这个系数
+     * @param voucherId 券id
+     * @param factor 系数
+     */
+    @PutMapping("seckill/{id}/rate-factor")
+    public Result setRateFactor(@PathVariable("id") Long voucherId, @RequestParam("factor") Double factor) {
+        if (factor <= 0) {
+            return Result.fail("系数必须大于0");
+        }
+        seckillRateLimiter.setFactor(voucherId, factor);
+        return Result.ok();
+    }
+
     /**
      * 查询店铺的优惠券列表
      * @param shopId 店铺id
@@ -3,9 +3,11 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
@@ -29,4 +31,52 @@ public class VoucherOrderController {
     public Result seckillVoucher(@PathVariable("id") Long voucherId) {
         return voucherOrderService.createSeckillVoucherOrder(voucherId);
     }
+
+    /**
+     * 查询秒杀订单的状态，订单是异步写库的，下单后轮询这个接口
+     * @param orderId 订单id
+     * @return PENDING：处理中；CREATED：已创建；FAILED：失败
+     */
+    @GetMapping("{id}/status")
+    public Result queryOrderStatus(@PathVariable("id") Long orderId) {
+        return voucherOrderService.queryOrderStatus(orderId);
+    }
+
+    /**
+     * 查询订单分区的积压和吞吐量
+     * @return 每个分区的监控数据
+     */
+    @GetMapping("partitions")
+    public Result queryOrderPartitions() {
+        return voucherOrderService.queryOrderPartitions();
+    }
+
+    /**
+     * 查询秒杀下单的准入控制数据
+     * @return 放行数、各原因的拒绝数、队列积压和排队时间
+     */
+    @GetMapping("admission")
+    public Result queryAdmission() {
+        return voucherOrderService.queryAdmission();
+    }
+
+    /**
+     * 查询写库失败的死信订单
+     * @param count 最多返回的死信数
+     * @return 各个原因的失败数和死信订单
+     */
+    @GetMapping("dead-letter")
+    public Result queryDeadLetters(@RequestParam(value = "count", defaultValue = "100") Integer count) {
+        return voucherOrderService.queryDeadLetters(count);
+    }
+
+    /**
+     * 问题修复后重放死信订单
+     * @param orderId 订单id
+     * @return 订单id
+     */
+    @PostMapping("dead-letter/{id}/replay")
+    public Result replayDeadLetter(@PathVariable("id") Long orderId) {
+        return voucherOrderService.replayDeadLetter(orderId);
+    }
 }
@@ -0,0 +1,17 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class AdmissionDTO {
+    // 放行执行秒杀脚本的请求数
+    private Long admitted;
+    // 分区队列快满了被拒绝的请求数
+    private Long shedByDepth;
+    // 排队时间太长被拒绝的请求数
+    private Long shedByWait;
+    // 所有分区队列里的订单数
+    private Long queueDepth;
+    // 各分区里最长的排队时间(毫秒)
+    private Long waitMillis;
+}
@@ -0,0 +1,18 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class DeadLetterDTO {
+    private Long orderId;
+    private Long userId;
+    private Long voucherId;
+    // 失败原因，OrderFailReason
+    private String reason;
+    // 重试过的次数
+    private Integer attempts;
+    // 最后一次的异常信息
+    private String error;
+    // 进入死信的时间戳(毫秒)
+    private Long deadAt;
+}
@@ -0,0 +1,18 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class OrderPartitionDTO {
+    private String name;
+    // 队列中等待的订单数
+    private Integer queueSize;
+    private Long enqueued;
+    private Long processed;
+    // 已接收还没写入数据库的订单数
+    private Long lag;
+    // 最近一秒写入数据库的订单数
+    private Long throughput;
+    // 新订单要排队的时间(毫秒)
+    private Long waitMillis;
+}
@@ -0,0 +1,26 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+@Data
+public class StockDriftDTO {
+    private Long voucherId;
+    // Redis里的库存，分片时是各分片之和
+    private Long redisStock;
+    // 心跳还在的节点租走还没卖掉的库存
+    private Long leasedStock;
+    // 这次对账回收的宕机节点的租约，已经算在Redis库存里
+    private Long reaped;
+    // Redis里的下单人数
+    private Long buyers;
+    // 数据库里的库存
+    private Long dbStock;
+    // 数据库里没取消的订单数
+    private Long dbOrders;
+    // Redis受理了还没写库的订单数，下单人数 - 数据库订单数
+    private Long inFlight;
+    // Redis库存 + 租走的库存 + 还没写库的订单 - 数据库库存，一致时为0，大于0有超卖风险
+    private Long drift;
+    // 这次修正的库存数，没修正为0
+    private Long corrected;
+}
@@ -52,6 +52,16 @@ public class VoucherOrder implements Serializable {
      */
     private Integer status;
 
+    /**
+     * 取消的订单等于订单id，未取消的为0，和user_id、voucher_id组成一人一单的唯一索引
+     */
+    private Long cancelId;
+
+    /**
+     * 取消后Redis里的库存和下单记录是否已经还回去，0：还没还；1：已还
+     */
+    private Integer stockReturned;
+
     /**
      * 下单时间
      */
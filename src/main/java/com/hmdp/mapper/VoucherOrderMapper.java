@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,12 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单，一条INSERT写入一批订单，主键或一人一单唯一索引冲突的行被忽略
+     * 不用INSERT IGNORE，它会把截断、非空等错误也变成警告，订单被当成已存在
+     * 返回值依赖连接参数useAffectedRows=true，否则MySQL把冲突的行也算进去
+     * @param orders 订单列表，不能为空
+     * @return 插入的行数，被忽略的不算
+     */
+    int insertBatchIgnoreDuplicate(@Param("orders") List<VoucherOrder> orders);
 }
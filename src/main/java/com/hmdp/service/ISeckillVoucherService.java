@@ -1,8 +1,11 @@
 package com.hmdp.service;
 
+import com.hmdp.dto.StockDriftDTO;
 import com.hmdp.entity.SeckillVoucher;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务类
@@ -13,4 +16,27 @@ import com.baomidou.mybatisplus.extension.service.IService;
  */
 public interface ISeckillVoucherService extends IService<SeckillVoucher> {
 
+    /**
+     * 把秒杀券的库存和可购时间写入Redis，已有的库存会被覆盖
+     * @param seckillVoucher 秒杀券
+     */
+    void saveSeckillVoucher2Redis(SeckillVoucher seckillVoucher);
+
+    /**
+     * 把所有没结束的秒杀券分批预热到Redis，Redis里已有的库存不覆盖
+     * @return 预热的券数量
+     */
+    int preheatSeckillVouchers();
+
+    /**
+     * 对账所有没结束的秒杀券的Redis库存和数据库库存，开启自动修正时修正Redis库存
+     * @return 有偏差的券
+     */
+    List<StockDriftDTO> reconcileStock();
+
+    /**
+     * 最近一次对账的结果
+     * @return 有偏差的券
+     */
+    List<StockDriftDTO> queryStockDrift();
 }
@@ -17,4 +17,9 @@ public interface IShopService extends IService<Shop> {
     Result queryById(Long id);
 
     Result update(Shop shop);
+
+    /**
+     * 新增商铺，同时加入布隆过滤器
+     */
+    Result saveShop(Shop shop);
 }
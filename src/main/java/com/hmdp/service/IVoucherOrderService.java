@@ -2,8 +2,11 @@ package com.hmdp.service;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
+import com.hmdp.utils.OrderFailReason;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -23,5 +26,57 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result createVoucherOrder(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    /**
+     * 创建一个异步订单
+     * @param voucherOrder 订单
+     * @return 写入数据库时返回null，否则返回失败原因
+     */
+    OrderFailReason createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * 批量创建订单，同一张券的订单合并成一条多行INSERT和一次扣库存，在一个事务里完成
+     * @param voucherOrders 订单列表
+     * @return 写入数据库的订单，包括重放时上次已经写入的，重复下单的不在里面
+     */
+    List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders);
+
+    /**
+     * 取消超时未支付的订单，数据库里的库存一起加回去
+     * @param orderIds 到期的订单id
+     * @return 要把Redis库存还回去的订单：这次取消的，以及上次取消后还没来得及还库存的
+     */
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
+    /**
+     * 查询订单分区的积压和吞吐量
+     * @return 每个分区的监控数据
+     */
+    Result queryOrderPartitions();
+
+    /**
+     * 查询秒杀下单的准入控制数据
+     * @return 放行数、各原因的拒绝数、队列积压和排队时间
+     */
+    Result queryAdmission();
+
+    /**
+     * 查询秒杀订单的状态，秒杀期间不查数据库
+     * @param orderId 订单id
+     * @return PENDING：处理中；CREATED：已创建；FAILED：失败
+     */
+    Result queryOrderStatus(Long orderId);
+
+    /**
+     * 查询死信订单和各个原因的失败数
+     * @param count 最多返回的死信数
+     * @return counts：各个原因的失败数；deadLetters：死信订单
+     */
+    Result queryDeadLetters(Integer count);
+
+    /**
+     * 重放死信订单，重新占用Redis库存后交给消费线程写库
+     * @param orderId 订单id
+     * @return 订单id
+     */
+    Result replayDeadLetter(Long orderId);
 }
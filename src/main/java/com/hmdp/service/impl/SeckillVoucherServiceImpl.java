@@ -1,11 +1,41 @@
 package com.hmdp.service.impl;
 
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.dto.StockDriftDTO;
 import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.mapper.SeckillVoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SimpleRedisLock;
+import com.hmdp.utils.SoldOutRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
 /**
  * <p>
  * 秒杀优惠券表，与优惠券是一对一关系 服务实现类
@@ -14,7 +44,394 @@ import org.springframework.stereotype.Service;
  * @author 虎哥
  * @since 2022-01-04
  */
+@Slf4j
 @Service
 public class SeckillVoucherServiceImpl extends ServiceImpl<SeckillVoucherMapper, SeckillVoucher> implements ISeckillVoucherService {
 
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStockLease seckillStockLease;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    // 秒杀库存分片数，1表示不分片
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    // 启动时是否预热秒杀券
+    @Value("${hmdp.seckill.preheat.on-startup:true}")
+    private boolean preheatOnStartup;
+
+    // 预热时每批查询和写入Redis的券数量
+    @Value("${hmdp.seckill.preheat.batch-size:500}")
+    private int preheatBatchSize;
+
+    @Value("${hmdp.seckill.buyer-bitmap:false}")
+    private boolean buyerBitmap;
+
+    // 库存对账的间隔(秒)，0表示不定时对账
+    @Value("${hmdp.seckill.reconcile.interval-seconds:60}")
+    private long reconcileIntervalSeconds;
+
+    // 是否自动修正Redis库存
+    @Value("${hmdp.seckill.reconcile.auto-correct:false}")
+    private boolean autoCorrect;
+
+    // 一次最多修正的库存数，偏差更大时只报告，由人工处理
+    @Value("${hmdp.seckill.reconcile.max-correction:10}")
+    private long maxCorrection;
+
+    private ScheduledExecutorService reconcileExecutor;
+
+    // 最近一次对账的结果
+    private volatile List<StockDriftDTO> lastDrifts = Collections.emptyList();
+
+    // 券id -> 上一次对账的偏差，连续两次一样才修正；Redis里各个key是依次读的，中间有下单、租库存、调拨时一次读到的可能对不上
+    private final Map<Long, Long> previousDrifts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        if (reconcileIntervalSeconds > 0) {
+            reconcileExecutor = Executors.newSingleThreadScheduledExecutor();
+            reconcileExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    reconcileStock();
+                } catch (Exception e) {
+                    log.error("秒杀库存对账失败", e);
+                }
+            }, reconcileIntervalSeconds, reconcileIntervalSeconds, TimeUnit.SECONDS);
+        }
+        if (!preheatOnStartup) {
+            return;
+        }
+        try {
+            int count = preheatSeckillVouchers();
+            log.info("预热了{}张秒杀券", count);
+        } catch (Exception e) {
+            log.error("秒杀券预热失败", e);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (reconcileExecutor != null) {
+            reconcileExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void saveSeckillVoucher2Redis(SeckillVoucher seckillVoucher) {
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            writeSeckillVoucher((StringRedisConnection) connection, seckillVoucher, true);
+            return null;
+        });
+        // 有库存了，清除各个节点的售罄标记
+        soldOutRegistry.replenished(seckillVoucher.getVoucherId());
+    }
+
+    @Override
+    public int preheatSeckillVouchers() {
+        int count = 0;
+        long lastId = 0;
+        while (true) {
+            // 按主键分批查没结束的券，不用offset分页
+            List<SeckillVoucher> seckillVouchers = query()
+                    .gt("end_time", LocalDateTime.now())
+                    .gt("voucher_id", lastId)
+                    .orderByAsc("voucher_id")
+                    .last("limit " + preheatBatchSize)
+                    .list();
+            if (seckillVouchers.isEmpty()) {
+                break;
+            }
+            // 一批券的写入放在一个pipeline里
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (SeckillVoucher seckillVoucher : seckillVouchers) {
+                    writeSeckillVoucher(stringConnection, seckillVoucher, false);
+                }
+                return null;
+            });
+            count += seckillVouchers.size();
+            lastId = seckillVouchers.get(seckillVouchers.size() - 1).getVoucherId();
+            if (seckillVouchers.size() < preheatBatchSize) {
+                break;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public List<StockDriftDTO> reconcileStock() {
+        // 多个节点只有一个在对账
+        SimpleRedisLock lock = new SimpleRedisLock("seckill:reconcile", stringRedisTemplate);
+        if (!lock.tryLock(Math.max(reconcileIntervalSeconds, 10))) {
+            return lastDrifts;
+        }
+        try {
+            List<StockDriftDTO> drifts = new ArrayList<>();
+            long lastId = 0;
+            while (true) {
+                List<SeckillVoucher> seckillVouchers = query()
+                        .select("voucher_id")
+                        .gt("end_time", LocalDateTime.now())
+                        .gt("voucher_id", lastId)
+                        .orderByAsc("voucher_id")
+                        .last("limit " + preheatBatchSize)
+                        .list();
+                if (seckillVouchers.isEmpty()) {
+                    break;
+                }
+                drifts.addAll(reconcileBatch(seckillVouchers));
+                lastId = seckillVouchers.get(seckillVouchers.size() - 1).getVoucherId();
+                if (seckillVouchers.size() < preheatBatchSize) {
+                    break;
+                }
+            }
+            lastDrifts = drifts;
+            return drifts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<StockDriftDTO> queryStockDrift() {
+        return lastDrifts;
+    }
+
+    private List<StockDriftDTO> reconcileBatch(List<SeckillVoucher> seckillVouchers) {
+        List<Long> voucherIds = seckillVouchers.stream().map(SeckillVoucher::getVoucherId).collect(Collectors.toList());
+        int shards = Math.max(stockShards, 1);
+
+        // 一个pipeline读出这批券的库存、租约和下单记录，每张券依次是shards个GET、shards个HGETALL、shards个SCARD
+        // 位图编码时最后是shards个SMEMBERS，读出写过的位图块
+        List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (Long voucherId : voucherIds) {
+                for (int i = 0; i < shards; i++) {
+                    stringConnection.get(SeckillKeys.stockKey(voucherId, i, stockShards));
+                }
+                for (int i = 0; i < shards; i++) {
+                    stringConnection.hGetAll(SeckillKeys.leaseKey(voucherId, i, stockShards));
+                }
+                for (int i = 0; i < shards; i++) {
+                    if (buyerBitmap) {
+                        stringConnection.sMembers(SeckillKeys.chunksKey(voucherId, i, stockShards));
+                    } else {
+                        stringConnection.sCard(SeckillKeys.orderKey(voucherId, i, stockShards));
+                    }
+                }
+            }
+            return null;
+        });
+
+        // 租约只算心跳还在的节点的，宕机节点的先回收到库存里
+        Set<String> nodeIds = new HashSet<>();
+        List<String> chunks = new ArrayList<>();
+        int index = 0;
+        for (int v = 0; v < voucherIds.size(); v++) {
+            index += shards;
+            for (int i = 0; i < shards; i++) {
+                for (Object nodeId : ((Map<?, ?>) replies.get(index++)).keySet()) {
+                    nodeIds.add(nodeId.toString());
+                }
+            }
+            for (int i = 0; i < shards; i++) {
+                Object reply = replies.get(index++);
+                if (buyerBitmap) {
+                    for (Object chunk : (Set<?>) reply) {
+                        chunks.add(chunk.toString());
+                    }
+                }
+            }
+        }
+        Set<String> aliveNodes = nodeIds.isEmpty() ? Collections.emptySet() : seckillStockLease.aliveNodes(nodeIds);
+        Map<String, Long> chunkBuyers = countBitmapBuyers(chunks);
+
+        // 数据库的库存和没取消的订单数在一条语句里查，是同一个快照；写库时插入订单和扣库存在一个事务里，
+        // 两个数分开查时中间提交的订单会被算成偏差
+        Map<Long, long[]> dbCounts = new HashMap<>();
+        List<Map<String, Object>> rows = getBaseMapper().selectMaps(new QueryWrapper<SeckillVoucher>()
+                .select("voucher_id", "stock",
+                        "(SELECT COUNT(*) FROM tb_voucher_order o WHERE o.voucher_id = tb_seckill_voucher.voucher_id AND o.status <> 4) AS orders")
+                .in("voucher_id", voucherIds));
+        for (Map<String, Object> row : rows) {
+            dbCounts.put(((Number) row.get("voucher_id")).longValue(),
+                    new long[]{((Number) row.get("stock")).longValue(), ((Number) row.get("orders")).longValue()});
+        }
+
+        List<StockDriftDTO> drifts = new ArrayList<>();
+        index = 0;
+        for (SeckillVoucher seckillVoucher : seckillVouchers) {
+            Long voucherId = seckillVoucher.getVoucherId();
+            boolean loaded = false;
+            long redisStock = 0;
+            for (int i = 0; i < shards; i++) {
+                Object stock = replies.get(index++);
+                if (stock != null) {
+                    loaded = true;
+                    redisStock += Long.parseLong((String) stock);
+                }
+            }
+            long leasedStock = 0;
+            boolean deadLeases = false;
+            for (int i = 0; i < shards; i++) {
+                for (Map.Entry<?, ?> lease : ((Map<?, ?>) replies.get(index++)).entrySet()) {
+                    if (aliveNodes.contains(lease.getKey().toString())) {
+                        leasedStock += Math.max(Long.parseLong(lease.getValue().toString()), 0);
+                    } else {
+                        deadLeases = true;
+                    }
+                }
+            }
+            long buyers = 0;
+            for (int i = 0; i < shards; i++) {
+                Object reply = replies.get(index++);
+                if (buyerBitmap) {
+                    for (Object chunk : (Set<?>) reply) {
+                        buyers += chunkBuyers.getOrDefault(chunk.toString(), 0L);
+                    }
+                } else {
+                    buyers += (Long) reply;
+                }
+            }
+            long[] dbCount = dbCounts.get(voucherId);
+            if (!loaded || dbCount == null) {
+                // 还没预热到Redis或者已经删除，不用对账
+                previousDrifts.remove(voucherId);
+                continue;
+            }
+            // 回收的库存加到上面读到的库存里
+            long reaped = deadLeases ? seckillStockLease.reap(voucherId) : 0;
+            redisStock += reaped;
+
+            StockDriftDTO dto = new StockDriftDTO();
+            dto.setVoucherId(voucherId);
+            dto.setRedisStock(redisStock);
+            dto.setLeasedStock(leasedStock);
+            dto.setReaped(reaped);
+            dto.setBuyers(buyers);
+            dto.setDbStock(dbCount[0]);
+            dto.setDbOrders(dbCount[1]);
+            dto.setInFlight(buyers - dto.getDbOrders());
+            dto.setDrift(redisStock + leasedStock + dto.getInFlight() - dto.getDbStock());
+            dto.setCorrected(0L);
+            Long previous = dto.getDrift() == 0 ? previousDrifts.remove(voucherId) : previousDrifts.put(voucherId, dto.getDrift());
+            if (dto.getDrift() == 0) {
+                continue;
+            }
+            log.warn("秒杀券{}库存偏差{}：Redis库存{}，租走{}，回收{}，下单人数{}，数据库库存{}，数据库订单{}", voucherId, dto.getDrift(),
+                    redisStock, leasedStock, reaped, buyers, dto.getDbStock(), dto.getDbOrders());
+            // 连续两次偏差一样，并且在允许的范围内，以数据库为准修正Redis库存
+            if (autoCorrect && dto.getDrift().equals(previous) && Math.abs(dto.getDrift()) <= maxCorrection) {
+                dto.setCorrected(correctStock(voucherId, -dto.getDrift()));
+                previousDrifts.remove(voucherId);
+                log.warn("秒杀券{}的Redis库存修正了{}", voucherId, dto.getCorrected());
+                if (dto.getCorrected() > 0) {
+                    soldOutRegistry.replenished(voucherId);
+                }
+            }
+            drifts.add(dto);
+        }
+        return drifts;
+    }
+
+    // 修正Redis库存，分片时摊到各个分片上，扣的时候每个分片最多扣到0，返回实际修正的数量
+    private long correctStock(Long voucherId, long delta) {
+        int shards = Math.max(stockShards, 1);
+        if (delta > 0) {
+            // 加的库存平均拆到各个分片，余数放在前面几个分片
+            for (int i = 0; i < shards; i++) {
+                long count = delta / shards + (i < delta % shards ? 1 : 0);
+                if (count > 0) {
+                    stringRedisTemplate.opsForValue().increment(SeckillKeys.stockKey(voucherId, i, stockShards), count);
+                }
+            }
+            return delta;
+        }
+        // 第一轮每个分片扣平均的一份，库存不够的分片扣到0为止，第二轮从还有库存的分片扣剩下的
+        long remaining = -delta;
+        long share = (remaining + shards - 1) / shards;
+        for (int round = 0; round < 2 && remaining > 0; round++) {
+            for (int i = 0; i < shards && remaining > 0; i++) {
+                Long taken = redisScripts.execute("seckill-stock-take", Long.class,
+                        Collections.singletonList(SeckillKeys.stockKey(voucherId, i, stockShards)),
+                        String.valueOf(round == 0 ? Math.min(share, remaining) : remaining));
+                remaining -= taken == null ? 0 : taken;
+            }
+        }
+        if (remaining > 0) {
+            // 库存已经卖完或者被节点租走了，扣不下来的等下次对账
+            log.warn("秒杀券{}的Redis库存不够修正，还差{}", voucherId, remaining);
+        }
+        return delta + remaining;
+    }
+
+    // 位图编码时下单人数是各个位图块里1的个数，位图块由秒杀脚本记在每个分片的集合里，返回位图块 -> 1的个数
+    private Map<String, Long> countBitmapBuyers(List<String> chunks) {
+        if (chunks.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String chunk : chunks) {
+                stringConnection.bitCount(chunk);
+            }
+            return null;
+        });
+        Map<String, Long> buyers = new HashMap<>(chunks.size() * 2);
+        for (int i = 0; i < chunks.size(); i++) {
+            buyers.put(chunks.get(i), (Long) counts.get(i));
+        }
+        return buyers;
+    }
+
+    // 写入库存和可购时间，overwriteStock为false时Redis里已有的库存不覆盖，防止活动进行中被数据库里还没扣完的库存覆盖
+    private void writeSeckillVoucher(StringRedisConnection connection, SeckillVoucher seckillVoucher, boolean overwriteStock) {
+        Long voucherId = seckillVoucher.getVoucherId();
+        int stock = seckillVoucher.getStock();
+        // 库存平均拆到各个分片，除不尽的余数放在前面几个分片
+        // 分片时每个分片带{voucherId:shard}这个hash tag，在集群里分散到不同的slot
+        int shards = Math.max(stockShards, 1);
+        for (int i = 0; i < shards; i++) {
+            int count = stock / shards + (i < stock % shards ? 1 : 0);
+            setStock(connection, SeckillKeys.stockKey(voucherId, i, stockShards), count, overwriteStock);
+        }
+
+        // 可购时间，每个分片放一份，和分片的库存在同一个slot，由秒杀脚本判断；券自己的一份给限流用
+        Map<String, String> times = new HashMap<>(2);
+        if (seckillVoucher.getBeginTime() != null) {
+            times.put("begin", String.valueOf(toEpochMilli(seckillVoucher.getBeginTime())));
+        }
+        if (seckillVoucher.getEndTime() != null) {
+            times.put("end", String.valueOf(toEpochMilli(seckillVoucher.getEndTime())));
+        }
+        if (!times.isEmpty()) {
+            connection.hMSet(SeckillKeys.timeKey(voucherId), times);
+            if (shards > 1) {
+                for (int i = 0; i < shards; i++) {
+                    connection.hMSet(SeckillKeys.timeKey(voucherId, i, stockShards), times);
+                }
+            }
+        }
+    }
+
+    private void setStock(StringRedisConnection connection, String key, int stock, boolean overwrite) {
+        if (overwrite) {
+            connection.set(key, String.valueOf(stock));
+        } else {
+            connection.setNX(key, String.valueOf(stock));
+        }
+    }
+
+    private long toEpochMilli(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
 }
@@ -1,25 +1,29 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.RedisBloomFilter;
+import com.hmdp.utils.SimpleRedisLock;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
-import java.util.concurrent.ExecutorService;
+import java.util.List;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -30,6 +34,7 @@ import java.util.concurrent.TimeUnit;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -39,6 +44,129 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     @Resource
     private CacheClient cacheClient;
 
+    // 商铺本地缓存的容量(字节)，0表示不开启
+    @Value("${hmdp.cache.shop.local-max-bytes:0}")
+    private long shopLocalMaxBytes;
+
+    // 商铺本地缓存的有效期(秒)
+    @Value("${hmdp.cache.shop.local-ttl-seconds:30}")
+    private long shopLocalTtlSeconds;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 是否用布隆过滤器拦截不存在的商铺id
+    @Value("${hmdp.cache.shop.bloom.enabled:false}")
+    private boolean shopBloomEnabled;
+
+    // 预计的商铺数量，超出后误判率会升高
+    @Value("${hmdp.cache.shop.bloom.expected-insertions:1000000}")
+    private long shopBloomExpectedInsertions;
+
+    // 误判率
+    @Value("${hmdp.cache.shop.bloom.fpp:0.01}")
+    private double shopBloomFpp;
+
+    // 重建的间隔(分钟)，去掉已删除的商铺
+    @Value("${hmdp.cache.shop.bloom.rebuild-minutes:60}")
+    private long shopBloomRebuildMinutes;
+
+    // 重建时每批查询的商铺数
+    private static final int SHOP_BLOOM_BATCH_SIZE = 1000;
+
+    private RedisBloomFilter shopBloomFilter;
+
+    private ScheduledExecutorService shopBloomExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (shopLocalMaxBytes > 0) {
+            cacheClient.enableLocalCache(RedisConstants.CACHE_SHOP_KEY, shopLocalMaxBytes, shopLocalTtlSeconds, TimeUnit.SECONDS);
+        }
+        if (shopBloomEnabled) {
+            shopBloomFilter = new RedisBloomFilter(stringRedisTemplate, redisMessageListenerContainer,
+                    RedisConstants.SHOP_BLOOM_KEY, shopBloomExpectedInsertions, shopBloomFpp);
+            cacheClient.enableBloomFilter(RedisConstants.CACHE_SHOP_KEY, shopBloomFilter);
+            // 启动时先加载Redis里的位图，没有就全量构建，之后定时重建；加载完成前过滤器不拦截
+            shopBloomExecutor = Executors.newSingleThreadScheduledExecutor();
+            shopBloomExecutor.execute(() -> {
+                try {
+                    if (!shopBloomFilter.load()) {
+                        rebuildShopBloomFilter();
+                    }
+                } catch (Exception e) {
+                    log.error("加载商铺布隆过滤器失败", e);
+                }
+            });
+            shopBloomExecutor.scheduleWithFixedDelay(() -> {
+                try {
+                    rebuildShopBloomFilter();
+                } catch (Exception e) {
+                    log.error("重建商铺布隆过滤器失败", e);
+                }
+            }, shopBloomRebuildMinutes, shopBloomRebuildMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (shopBloomExecutor != null) {
+            shopBloomExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 用数据库里所有的商铺id重建布隆过滤器，多个节点只有一个在重建，其他节点收到通知后重新加载
+     */
+    public void rebuildShopBloomFilter() {
+        SimpleRedisLock lock = new SimpleRedisLock("shop:bloom:rebuild", stringRedisTemplate);
+        if (!lock.tryLock(TimeUnit.MINUTES.toSeconds(10))) {
+            return;
+        }
+        try {
+            // 重建期间其他节点新增的商铺写在旧位图里，会被重建的位图覆盖，记下开始时间，重建完按创建时间重新加
+            // 往前留一分钟，应用和数据库的时钟差、开始前插入但还没提交的商铺都算进去
+            LocalDateTime rebuildStart = LocalDateTime.now().minusMinutes(1);
+            long[] lastId = {0};
+            shopBloomFilter.rebuild(sink -> {
+                // 按主键分批查，不用offset分页
+                while (true) {
+                    List<Object> ids = listObjs(new QueryWrapper<Shop>()
+                            .select("id")
+                            .gt("id", lastId[0])
+                            .orderByAsc("id")
+                            .last("limit " + SHOP_BLOOM_BATCH_SIZE));
+                    for (Object id : ids) {
+                        sink.accept(id);
+                    }
+                    if (!ids.isEmpty()) {
+                        lastId[0] = ((Number) ids.get(ids.size() - 1)).longValue();
+                    }
+                    if (ids.size() < SHOP_BLOOM_BATCH_SIZE) {
+                        break;
+                    }
+                }
+            });
+            // id不一定比扫描到的最大id大，事务晚提交的商铺id可能更小，所以按创建时间找
+            for (Object id : listObjs(new QueryWrapper<Shop>().select("id").ge("create_time", rebuildStart))) {
+                shopBloomFilter.add(id);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Result saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器，否则新商铺会被拦截
+        if (shopBloomFilter != null) {
+            shopBloomFilter.add(shop.getId());
+        }
+        return Result.ok(shop.getId());
+    }
+
     @Override
     public Result queryById(Long id) {
         // 解决缓存穿透
@@ -65,80 +193,22 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 
     // 解决缓存穿透
     public Result queryWithPassThrough(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return Result.ok(shop);
-        }
-        if (shopJson != null) {
-            return Result.fail("商铺不存在");
-        }
-        // 不存在，根据id查询数据库
-        Shop shop = getById(id);
-        // 判断是否存在
+        // 缓存值的格式由CacheClient的编解码器决定，不能直接读写JSON
+        Shop shop = cacheClient.queryWithPassThrough(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
         if (shop == null) {
-            // 不存在，redis存空值，返回错误
-            stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
             return Result.fail("商铺不存在");
         }
-        // 存在，写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 返回
         return Result.ok(shop);
     }
 
     public Result queryWithMutex(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 从redis查询商铺缓存
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 判断是否存在
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 存在，直接返回
-            Shop shop = JSONUtil.toBean(shopJson, Shop.class);
-            return Result.ok(shop);
-        }
-        // 不存在的结果存的是""
-        if (shopJson != null) {
+        // 同一个节点的并发请求合并成一次重建，只有一个线程抢锁，不再每个请求睡眠重试
+        Shop shop = cacheClient.queryWithMutex(RedisConstants.CACHE_SHOP_KEY, RedisConstants.LOCK_SHOP_KEY, id, Shop.class,
+                this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        if (shop == null) {
             return Result.fail("商铺不存在");
         }
-        // 不存在，根据id查询数据库
-        String lockKey = RedisConstants.LOCK_SHOP_KEY + id;
-        if (tryLock(lockKey)) {
-            try {
-                Shop shop = getById(id);
-
-                // 模拟重建延时
-                Thread.sleep(1000);
-
-                // 判断是否存在
-                if (shop == null) {
-                    // 不存在，redis存空值，返回错误
-                    stringRedisTemplate.opsForValue().set(key, "", RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
-                    return Result.fail("商铺不存在");
-                }
-                // 存在，写入redis
-                stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
-                // 返回
-                return Result.ok(shop);
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            } finally {
-                unlock(lockKey);
-            }
-        }
-        else {
-            try {
-                Thread.sleep(50);
-            }
-            catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-            return queryWithMutex(id);
-        }
+        return Result.ok(shop);
     }
 
     @Override
@@ -150,61 +220,16 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         }
         // 写入数据库
         updateById(shop);
-        // 删除缓存
-        stringRedisTemplate.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
+        // 删除缓存，同时通知所有节点删除本地缓存
+        cacheClient.delete(RedisConstants.CACHE_SHOP_KEY + shop.getId());
         return Result.ok();
     }
 
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 10, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    private void unlock(String key) {
-        stringRedisTemplate.delete(key);
-    }
-
-    private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
-
     public Result queryWithLogicalExpire(Long id) {
-        String key = RedisConstants.CACHE_SHOP_KEY + id;
-        // 从redis查询商铺缓存
-        String dataJson = stringRedisTemplate.opsForValue().get(key);
-        // 判断是否存在
-        if (StrUtil.isBlank(dataJson)) {
+        Shop shop = cacheClient.queryWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY, id, Shop.class, this::getById, RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        if (shop == null) {
             return Result.fail("商铺不存在");
         }
-        // 存在
-        RedisData  data = JSONUtil.toBean(dataJson, RedisData.class);
-        JSONObject shopObj = (JSONObject) data.getData();
-        Shop shop = JSONUtil.toBean(shopObj, Shop.class);
-        if (data.getExpireTime().isAfter(LocalDateTime.now())) {
-            // 未过期直接返回
-            return Result.ok(shop);
-        } else {
-            // 数据过期，尝试获取锁，开启新线程重建缓存，返回过期数据
-            try {
-                boolean isLock = tryLock(RedisConstants.LOCK_SHOP_KEY + id);
-                if (isLock) {
-                    // double check，防止重复重建
-                    data = JSONUtil.toBean(dataJson, RedisData.class);
-                    shop = JSONUtil.toBean((JSONObject) data.getData(), Shop.class);
-                    if (data.getExpireTime().isAfter(LocalDateTime.now())) {
-                        return Result.ok(shop);
-                    }
-
-                    // 开启一个新线程重建缓存
-                    CACHE_REBUILD_EXECUTOR.submit(() -> {
-                       saveShop2Redis(id, RedisConstants.CACHE_SHOP_TTL);
-                    });
-                    return Result.ok(shop);
-                }
-            } catch (Exception e) {
-                throw new RuntimeException(e);
-            } finally {
-                unlock(RedisConstants.LOCK_SHOP_KEY + id);
-            }
-        }
         return Result.ok(shop);
     }
 
@@ -215,9 +240,6 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             throw new RuntimeException(e);
         }
         Shop shop = getById(id);
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusMinutes(expireMinutes));
-        stringRedisTemplate.opsForValue().set(RedisConstants.CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + id, shop, expireMinutes, TimeUnit.MINUTES);
     }
 }
@@ -1,16 +1,14 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.collection.CollectionUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONUtil;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.RedisConstants;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 
 import java.util.List;
@@ -28,25 +26,18 @@ import java.util.concurrent.TimeUnit;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Autowired
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Override
     public Result queryTypeList() {
-        String key = RedisConstants.CACHE_SHOP_TYPE_KEY;
-        String shopTypeJson = stringRedisTemplate.opsForValue().get(key);
-        if (StrUtil.isNotBlank(shopTypeJson)) {
-            List<ShopType> shopTypeList = JSONUtil.toList(shopTypeJson, ShopType.class);
-            return Result.ok(shopTypeList);
-        }
-        // 不存在，根据id查询数据库
-        List<ShopType> shopTypeList = query().orderByAsc("sort").list();
+        // 缓存没有时按排序查数据库，写入缓存
+        List<ShopType> shopTypeList = cacheClient.queryList(RedisConstants.CACHE_SHOP_TYPE_KEY, ShopType.class,
+                () -> query().orderByAsc("sort").list(), RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
         // 判断是否存在
         if (CollectionUtil.isEmpty(shopTypeList)) {
             // 不存在，返回错误
             return Result.fail("商铺类型不存在");
         }
-        // 存在，写入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shopTypeList), RedisConstants.CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
         // 返回
         return Result.ok(shopTypeList);
     }
@@ -1,30 +1,73 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
+import com.hmdp.dto.DeadLetterDTO;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.hmdp.dto.OrderPartitionDTO;
+import com.hmdp.utils.AdmissionController;
+import com.hmdp.utils.BlockingQueueHandoff;
+import com.hmdp.utils.OrderDeadLetterQueue;
+import com.hmdp.utils.OrderFailReason;
+import com.hmdp.utils.OrderHandoff;
+import com.hmdp.utils.OrderJournal;
+import com.hmdp.utils.OrderPartition;
+import com.hmdp.utils.OrderRingBuffer;
+import com.hmdp.utils.OrderStatusCache;
+import com.hmdp.utils.OrderTimeoutQueue;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.RedisScripts;
+import com.hmdp.utils.SeckillKeys;
+import com.hmdp.utils.SeckillStockLease;
+import com.hmdp.utils.SeckillStockShards;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
-import org.redisson.api.RLock;
-import org.redisson.api.RedissonClient;
-import org.springframework.aop.framework.AopContext;
-import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.connection.stream.Consumer;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessagesSummary;
+import org.springframework.data.redis.connection.stream.StreamRecords;
+import org.springframework.data.redis.connection.stream.ReadOffset;
+import org.springframework.data.redis.connection.stream.RecordId;
+import org.springframework.data.redis.connection.stream.StreamOffset;
+import org.springframework.data.redis.connection.stream.StreamReadOptions;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -36,7 +79,7 @@ import java.util.concurrent.Executors;
  */
 @Service
 @Slf4j
-public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
+public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService, SmartInitializingSingleton {
 
     @Resource
     private ISeckillVoucherService seckillVoucherService;
@@ -48,62 +91,827 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private StringRedisTemplate stringRedisTemplate;
 
     @Resource
-    private RedissonClient redissonClient;
+    private SoldOutRegistry soldOutRegistry;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillStockLease seckillStockLease;
 
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("lua/seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private OrderStatusCache orderStatusCache;
+
+    @Resource
+    private OrderDeadLetterQueue orderDeadLetterQueue;
+
+    @Resource
+    private OrderTimeoutQueue orderTimeoutQueue;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    // 下单模式，queue：JVM阻塞队列，重启会丢失订单；stream：Redis Stream消息队列，确认后才算处理完
+    @Value("${hmdp.seckill.order-mode:queue}")
+    private String orderMode;
+
+    // 当前节点在消费者组中的名称
+    @Value("${hmdp.seckill.stream.consumer:c1}")
+    private String streamConsumer;
+
+    // 批量写库时一批最多的订单数
+    @Value("${hmdp.seckill.batch.size:100}")
+    private int batchSize;
+
+    // 攒一批订单最多等待的时间(毫秒)
+    @Value("${hmdp.seckill.batch.wait-millis:50}")
+    private long batchWaitMillis;
+
+    // 秒杀库存分片数，1表示不分片，要和VoucherServiceImpl里的一致
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    // 下单记录是否用位图编码，和秒杀脚本一致
+    @Value("${hmdp.seckill.buyer-bitmap:false}")
+    private boolean buyerBitmap;
+
+    // 分区数，每个分区一个消费线程
+    @Value("${hmdp.seckill.partition.count:4}")
+    private int partitionCount;
+
+    // 每个分区本地队列的容量
+    @Value("${hmdp.seckill.partition.capacity:65536}")
+    private int partitionCapacity;
+
+    // 分区本地队列的实现，queue：ArrayBlockingQueue；ring：无锁环形队列
+    @Value("${hmdp.seckill.partition.handoff:queue}")
+    private String partitionHandoff;
+
+    // ring队列消费线程没有订单时的等待方式，BUSY_SPIN、YIELD、PARK
+    @Value("${hmdp.seckill.partition.wait-strategy:PARK}")
+    private OrderRingBuffer.WaitStrategy partitionWaitStrategy;
+
+    // 写库异常的订单最多重试的次数，用完后进入死信
+    @Value("${hmdp.seckill.retry.max-attempts:5}")
+    private int retryMaxAttempts;
+
+    // 第一次重试的延迟(毫秒)，之后每次翻倍
+    @Value("${hmdp.seckill.retry.base-delay-millis:200}")
+    private long retryBaseDelayMillis;
+
+    // 重试延迟的上限(毫秒)
+    @Value("${hmdp.seckill.retry.max-delay-millis:10000}")
+    private long retryMaxDelayMillis;
+
+    // 一次最多取消的超时订单数
+    @Value("${hmdp.seckill.pay-timeout.batch-size:500}")
+    private int timeoutBatchSize;
+
+    // 检查超时订单的间隔(毫秒)
+    @Value("${hmdp.seckill.pay-timeout.scan-millis:1000}")
+    private long timeoutScanMillis;
+
+    // queue模式下是否开启订单预写日志
+    @Value("${hmdp.seckill.journal.enabled:true}")
+    private boolean journalEnabled;
+
+    // 预写日志的目录
+    @Value("${hmdp.seckill.journal.dir:journal}")
+    private String journalDir;
+
+    // 每个日志段的记录数
+    @Value("${hmdp.seckill.journal.segment-records:1048576}")
+    private int journalSegmentRecords;
+
+    // 刷盘的间隔(毫秒)
+    @Value("${hmdp.seckill.journal.flush-millis:5}")
+    private long journalFlushMillis;
+
+    // 追加后是否等到刷盘再返回
+    @Value("${hmdp.seckill.journal.sync:false}")
+    private boolean journalSync;
+
+    // 分区队列里的订单数达到容量的这个比例后拒绝新的秒杀请求
+    @Value("${hmdp.seckill.admission.max-depth-ratio:0.8}")
+    private double admissionMaxDepthRatio;
+
+    // 新订单要排队超过这个时间(毫秒)后拒绝新的秒杀请求
+    @Value("${hmdp.seckill.admission.max-wait-millis:2000}")
+    private long admissionMaxWaitMillis;
+
+    // 订单分区：queue模式下订单按userId哈希放进分区的阻塞队列，同一个用户的订单总在同一个线程里处理，不需要再加用户锁
+    private OrderPartition[] partitions;
+
+    // 准入控制，执行秒杀脚本前检查分区积压
+    private AdmissionController admissionController;
+
+    // 停机时等待订单处理线程退出的最长时间(毫秒)
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
 
-    // 阻塞队列：当一个线程尝试从队列里获取元素时，如果没有元素，这个线程就会被阻塞，知道队列中有元素才会被幻唤醒
-    private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
+    // 线程池，每个分区一个线程
+    private ExecutorService seckillOrderExecutor;
 
-    // 线程池
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR = Executors.newSingleThreadExecutor();
+    // 重试线程，按延迟重新写库，不占用分区的消费线程
+    private ScheduledExecutorService retryExecutor;
+
+    // 取消超时未支付订单的线程
+    private ScheduledExecutorService timeoutExecutor;
+
+    // 预写日志的刷盘线程
+    private ScheduledExecutorService journalFlushExecutor;
+
+    // stream模式下刷新订单消息队列列表、清理结束的队列的线程
+    private ScheduledExecutorService streamExecutor;
+
+    // stream模式下要读的订单消息队列，每个库存分片一个
+    private volatile List<String> streamKeys = Collections.emptyList();
+
+    // 本节点已经创建过消费者组的队列
+    private final Set<String> createdStreams = ConcurrentHashMap.newKeySet();
+
+    // stream模式下正在重试的消息(队列/消息id)，重试结束后才确认，重新读pending-list时跳过
+    private final Set<String> retryingRecords = ConcurrentHashMap.newKeySet();
+
+    // 预写日志里上次没处理完的订单，所有bean创建完后重放
+    private List<VoucherOrder> recoveredOrders = Collections.emptyList();
+
+    // 这次启动写的新一代日志目录，没开预写日志时为null
+    private File journalGeneration;
 
     @PostConstruct  // 当前类初始化完毕后执行
-    private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+    private void init() throws IOException {
+        partitions = new OrderPartition[partitionCount];
+        admissionController = new AdmissionController(admissionMaxDepthRatio, admissionMaxWaitMillis);
+        seckillOrderExecutor = Executors.newFixedThreadPool(partitionCount);
+        retryExecutor = Executors.newSingleThreadScheduledExecutor();
+        timeoutExecutor = Executors.newSingleThreadScheduledExecutor();
+        timeoutExecutor.scheduleWithFixedDelay(this::cancelTimeoutOrders, timeoutScanMillis, timeoutScanMillis, TimeUnit.MILLISECONDS);
+        if (isStreamMode()) {
+            refreshStreams();
+            streamExecutor = Executors.newSingleThreadScheduledExecutor();
+            streamExecutor.scheduleWithFixedDelay(this::refreshStreams, 1, 1, TimeUnit.SECONDS);
+            for (int i = 0; i < partitionCount; i++) {
+                // 每个分区是消费者组里的一个消费者，由Redis分配消息
+                partitions[i] = new OrderPartition(streamConsumer + "-" + i, null);
+                seckillOrderExecutor.submit(new VoucherOrderStreamHandler(partitions[i]));
+            }
+            return;
+        }
+        if (journalEnabled) {
+            initJournal();
+            return;
+        }
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new OrderPartition("partition-" + i, newHandoff());
+        }
+        startHandlers();
+    }
+
+    private void startHandlers() {
+        for (OrderPartition partition : partitions) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(partition));
+        }
+    }
+
+    private OrderHandoff newHandoff() {
+        if ("ring".equals(partitionHandoff)) {
+            return new OrderRingBuffer(partitionCapacity, partitionWaitStrategy);
+        }
+        return new BlockingQueueHandoff(partitionCapacity);
+    }
+
+    // 读出上次没处理完的订单，等所有bean创建完后在新一代日志里重新追加并入队，分区数变了也能按新的分区重放
+    private void initJournal() throws IOException {
+        File root = new File(journalDir);
+        recoveredOrders = OrderJournal.recover(root);
+        journalGeneration = new File(root, "gen-" + System.currentTimeMillis());
+        for (int i = 0; i < partitionCount; i++) {
+            OrderJournal journal = new OrderJournal(new File(journalGeneration, "partition-" + i), journalSegmentRecords, journalSync);
+            partitions[i] = new OrderPartition("partition-" + i, newHandoff(), journal);
+        }
+        // 重放前启动刷盘线程，同步刷盘时重放的订单也要等刷盘
+        journalFlushExecutor = Executors.newSingleThreadScheduledExecutor();
+        journalFlushExecutor.scheduleWithFixedDelay(this::flushJournals, journalFlushMillis, journalFlushMillis, TimeUnit.MILLISECONDS);
+        startHandlers();
+    }
+
+    /**
+     * 消费线程写库要经过代理对象，代理对象在当前bean初始化完之前拿不到，所以重放放到所有bean创建完、开始接收请求之前
+     */
+    @Override
+    public void afterSingletonsInstantiated() {
+        if (journalGeneration == null) {
+            return;
+        }
+        try {
+            replayJournal();
+        } catch (IOException e) {
+            throw new IllegalStateException("重放预写日志失败", e);
+        }
+    }
+
+    // 重放的订单比队列容量多时等消费线程腾出位置，写库是幂等的，旧日志删除前崩溃重放两次也没关系
+    private void replayJournal() throws IOException {
+        List<VoucherOrder> recovered = recoveredOrders;
+        recoveredOrders = Collections.emptyList();
+        for (VoucherOrder voucherOrder : recovered) {
+            orderStatusCache.pending(voucherOrder.getId());
+            OrderPartition partition = partitionOf(voucherOrder.getUserId());
+            while (!partition.offer(voucherOrder)) {
+                try {
+                    Thread.sleep(batchWaitMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("重放预写日志时被中断", e);
+                }
+            }
+        }
+        // 新日志刷盘后才能删旧日志
+        for (OrderPartition partition : partitions) {
+            partition.getJournal().flush();
+        }
+        OrderJournal.deleteOthers(new File(journalDir), journalGeneration);
+        if (!recovered.isEmpty()) {
+            log.info("从预写日志重放了{}个订单", recovered.size());
+        }
+    }
+
+    private void flushJournals() {
+        for (OrderPartition partition : partitions) {
+            try {
+                partition.getJournal().flush();
+            } catch (Exception e) {
+                log.error("预写日志刷盘失败", e);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        // 中断消费线程，正在处理的订单处理完后退出，stream模式下未确认的消息重启后会重新处理
+        seckillOrderExecutor.shutdownNow();
+        // 还在等待重试的订单，queue模式下会丢失，stream模式下消息没确认，重启后重新处理
+        retryExecutor.shutdownNow();
+        // 取出来没处理完的超时订单，租期过后会被重新取出
+        timeoutExecutor.shutdownNow();
+        if (streamExecutor != null) {
+            streamExecutor.shutdownNow();
+        }
+        if (journalFlushExecutor != null) {
+            journalFlushExecutor.shutdownNow();
+        }
+        // 等线程都退出再关闭Redis连接和数据源，不然退出前的最后一轮处理会打出一堆连接异常
+        awaitTermination(seckillOrderExecutor, retryExecutor, timeoutExecutor, streamExecutor, journalFlushExecutor);
+        if (journalFlushExecutor != null) {
+            flushJournals();
+        }
+    }
+
+    private static void awaitTermination(ExecutorService... executors) {
+        long deadline = System.currentTimeMillis() + SHUTDOWN_TIMEOUT_MILLIS;
+        try {
+            for (ExecutorService executor : executors) {
+                if (executor != null && !executor.awaitTermination(
+                        Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS)) {
+                    log.warn("订单处理线程没有在{}毫秒内退出", SHUTDOWN_TIMEOUT_MILLIS);
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isStreamMode() {
+        return "stream".equals(orderMode);
+    }
+
+    private OrderPartition partitionOf(Long userId) {
+        return partitions[Math.floorMod(userId.hashCode(), partitions.length)];
     }
 
     // 线程任务
     private class VoucherOrderHandler implements Runnable {
+
+        private final OrderPartition partition;
+
+        VoucherOrderHandler(OrderPartition partition) {
+            this.partition = partition;
+        }
+
         @Override
         public void run() {
-            while (true) {
-                // 获取队列中的订单信息
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
+            while (!Thread.currentThread().isInterrupted()) {
+                // 获取队列中的订单信息，攒够一批或者等够时间后一起写库
                 try {
-                    VoucherOrder voucherOrder = orderTasks.take();
-                    handleVoucherOrder(voucherOrder);
+                    partition.drain(batch, batchSize, batchWaitMillis);
+                    handleVoucherOrders(batch);
+                } catch (InterruptedException e) {
+                    // 停机时把已经取出来的订单处理完再退出
+                    if (!batch.isEmpty()) {
+                        handleVoucherOrders(batch);
+                    }
+                    return;
                 } catch (Exception e) {
                     log.error("订单处理异常", e);
+                } finally {
+                    batch.clear();
                 }
             }
         }
+
+        private void handleVoucherOrders(List<VoucherOrder> batch) {
+            OrderJournal journal = partition.getJournal();
+            // 这批订单在预写日志里的起始序号
+            long seq = journal == null ? 0 : journal.take(batch.size());
+            // 写预写日志失败被拒绝的订单留了null占位，只占日志里的位置，不用处理
+            List<VoucherOrder> voucherOrders = batch.contains(null)
+                    ? batch.stream().filter(Objects::nonNull).collect(Collectors.toList())
+                    : batch;
+            try {
+                updateOrderStatus(voucherOrders, proxy.createVoucherOrders(voucherOrders));
+            } catch (Exception e) {
+                // 整批回滚了，逐个处理，避免一个订单的问题拖累整批
+                log.error("批量保存订单失败，逐个处理", e);
+                for (int i = 0; i < batch.size(); i++) {
+                    VoucherOrder voucherOrder = batch.get(i);
+                    if (voucherOrder == null) {
+                        continue;
+                    }
+                    if (journal == null) {
+                        handleVoucherOrder(voucherOrder, null);
+                        continue;
+                    }
+                    // 重试中的订单还留在日志里，重试结束才能越过它推进检查点
+                    long orderSeq = seq + i;
+                    journal.hold(orderSeq);
+                    handleVoucherOrder(voucherOrder, () -> journal.release(orderSeq));
+                }
+            }
+            partition.processed(voucherOrders.size());
+            if (journal != null) {
+                journal.checkpoint();
+            }
+        }
     }
 
-    private void handleVoucherOrder(VoucherOrder voucherOrder) {
-        // 创建锁对象
-        Long userId = voucherOrder.getUserId();
-        RLock lock = redissonClient.getLock("lock:order:" + userId);
-        boolean isLock = lock.tryLock();
-        if (!isLock) {
-            // 获取锁失败，代表一个用户在并发抢票
-            log.error("不允许重复下单");// 理论上不可能存在这种情况，redis已经做过并发判断了
+    // 消息队列的线程任务，订单写入数据库后才确认消息，没确认的消息留在pending-list里，重启后重新处理
+    // 每个库存分片一个队列，消费者轮流读所有队列，消费者组在多个消费者之间分配消息
+    private class VoucherOrderStreamHandler implements Runnable {
+
+        private final OrderPartition partition;
+
+        // 在消费者组中的名称
+        private final String consumer;
+
+        // 已经处理过pending-list的队列
+        private final Set<String> knownStreams = new HashSet<>();
+
+        VoucherOrderStreamHandler(OrderPartition partition) {
+            this.partition = partition;
+            this.consumer = partition.getName();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                boolean read = false;
+                for (String streamKey : streamKeys) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    // 第一次读一个队列时，先认领已下线消费者没确认的消息，再处理自己pending-list里的消息
+                    if (knownStreams.add(streamKey)) {
+                        claimPendingOrders(streamKey, consumer);
+                        handlePendingList(streamKey);
+                    }
+                    try {
+                        // 获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 100 STREAMS stream.orders:{id} >
+                        // 要轮流读多个队列，不阻塞等待
+                        List<MapRecord<String, Object, Object>> list = readStream(consumer,
+                                StreamReadOptions.empty().count(batchSize),
+                                StreamOffset.create(streamKey, ReadOffset.lastConsumed()));
+                        if (list == null || list.isEmpty()) {
+                            continue;
+                        }
+                        read = true;
+                        // 消息id里是写入时的时间戳
+                        partition.read(list.get(0).getId().getTimestamp());
+                        handleRecords(list);
+                    } catch (Exception e) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+                        log.error("订单处理异常", e);
+                        handlePendingList(streamKey);
+                    }
+                }
+                if (!read) {
+                    // 所有队列都没有消息，等一会再读
+                    partition.idle();
+                    try {
+                        Thread.sleep(batchWaitMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // 处理pending-list中已读取但没确认的消息
+        private void handlePendingList(String streamKey) {
+            // 从上一批最后一条消息往后读，正在重试的消息还留在pending-list里，每次从0开始读会一直读到它们
+            String lastId = "0";
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    // XREADGROUP GROUP g1 c1 COUNT 100 STREAMS stream.orders:{id} 0
+                    List<MapRecord<String, Object, Object>> list = readStream(consumer,
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(streamKey, ReadOffset.from(lastId)));
+                    if (list == null || list.isEmpty()) {
+                        // pending-list里没有消息了
+                        return;
+                    }
+                    handleRecords(list);
+                    lastId = list.get(list.size() - 1).getId().getValue();
+                } catch (Exception e) {
+                    log.error("处理pending-list订单异常", e);
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                }
+            }
+        }
+
+        // 一批消息都来自同一个队列
+        private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+            String streamKey = records.get(0).getStream();
+            // 重新读pending-list时，正在重试的消息也会读出来，跳过
+            if (!retryingRecords.isEmpty()) {
+                records = records.stream().filter(r -> !retryingRecords.contains(retryingKey(r))).collect(Collectors.toList());
+                if (records.isEmpty()) {
+                    return;
+                }
+            }
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+            }
+            try {
+                updateOrderStatus(voucherOrders, proxy.createVoucherOrders(voucherOrders));
+            } catch (Exception e) {
+                // 整批回滚了，逐个处理，写库异常的消息交给重试线程，重试结束后再确认
+                log.error("批量保存订单失败，逐个处理", e);
+                for (int i = 0; i < records.size(); i++) {
+                    MapRecord<String, Object, Object> record = records.get(i);
+                    String retryingKey = retryingKey(record);
+                    retryingRecords.add(retryingKey);
+                    handleVoucherOrder(voucherOrders.get(i), () -> {
+                        acknowledge(streamKey, record.getId());
+                        retryingRecords.remove(retryingKey);
+                    });
+                }
+                partition.processed(records.size());
+                return;
+            }
+            // 订单事务提交后再确认 XACK stream.orders:{id} g1 id1 id2 ...
+            acknowledge(streamKey, records.stream().map(MapRecord::getId).toArray(RecordId[]::new));
+            partition.processed(records.size());
+        }
+    }
+
+    // 不同队列的消息id可能相同，带上队列名
+    private static String retryingKey(MapRecord<String, Object, Object> record) {
+        return record.getStream() + "/" + record.getId().getValue();
+    }
+
+    // 只读一个stream，read的参数是泛型可变参数，在这里集中处理unchecked警告
+    @SuppressWarnings("unchecked")
+    private List<MapRecord<String, Object, Object>> readStream(String consumer, StreamReadOptions options, StreamOffset<String> offset) {
+        return stringRedisTemplate.opsForStream().read(
+                Consumer.from(RedisConstants.SECKILL_STREAM_GROUP, consumer), options, offset);
+    }
+
+    private void acknowledge(String streamKey, RecordId... recordIds) {
+        stringRedisTemplate.opsForStream().acknowledge(streamKey, RedisConstants.SECKILL_STREAM_GROUP, recordIds);
+    }
+
+    // 下单前确保分片的队列和消费者组已经创建，并登记到队列列表里，消费者刷新列表后开始读
+    private String streamKeyOf(Long voucherId, int shard) {
+        String streamKey = SeckillKeys.streamKey(voucherId, shard, stockShards);
+        if (createdStreams.contains(streamKey)) {
+            return streamKey;
+        }
+        createStreamGroup(streamKey);
+        // 券结束一段时间后，消息处理完的队列会被清理
+        Object end = stringRedisTemplate.opsForHash().get(SeckillKeys.timeKey(voucherId), "end");
+        stringRedisTemplate.opsForZSet().add(RedisConstants.SECKILL_STREAMS_KEY, streamKey,
+                end == null ? Double.MAX_VALUE : Double.parseDouble((String) end));
+        createdStreams.add(streamKey);
+        return streamKey;
+    }
+
+    // 创建消费者组，MKSTREAM在队列不存在时一起创建，组已存在时忽略
+    private void createStreamGroup(String streamKey) {
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.execute("XGROUP",
+                    "CREATE".getBytes(StandardCharsets.UTF_8),
+                    streamKey.getBytes(StandardCharsets.UTF_8),
+                    RedisConstants.SECKILL_STREAM_GROUP.getBytes(StandardCharsets.UTF_8),
+                    "0".getBytes(StandardCharsets.UTF_8),
+                    "MKSTREAM".getBytes(StandardCharsets.UTF_8)));
+        } catch (Exception e) {
+            // BUSYGROUP，消费者组已经存在
+            log.debug("消费者组已存在：{}", e.getMessage());
+        }
+    }
+
+    // 刷新要读的队列，顺便删除券已经结束很久、消息都处理完的队列
+    private void refreshStreams() {
+        try {
+            Set<String> keys = stringRedisTemplate.opsForZSet().range(RedisConstants.SECKILL_STREAMS_KEY, 0, -1);
+            streamKeys = keys == null ? Collections.emptyList() : new ArrayList<>(keys);
+            Set<String> expired = stringRedisTemplate.opsForZSet().rangeByScore(RedisConstants.SECKILL_STREAMS_KEY,
+                    0, System.currentTimeMillis() - RedisConstants.SECKILL_STREAM_RETENTION);
+            if (expired != null) {
+                expired.forEach(this::removeStreamIfDone);
+            }
+        } catch (Exception e) {
+            log.error("刷新订单消息队列失败", e);
+        }
+    }
+
+    private void removeStreamIfDone(String streamKey) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(streamKey))) {
+            // 还有消息没确认，或者还有消息没被读过
+            PendingMessagesSummary pending = stringRedisTemplate.opsForStream().pending(streamKey, RedisConstants.SECKILL_STREAM_GROUP);
+            if (pending.getTotalPendingMessages() > 0) {
+                return;
+            }
+            String lastId = stringRedisTemplate.opsForStream().info(streamKey).lastGeneratedId();
+            boolean delivered = stringRedisTemplate.opsForStream().groups(streamKey).stream()
+                    .anyMatch(g -> RedisConstants.SECKILL_STREAM_GROUP.equals(g.groupName()) && lastId.equals(g.lastDeliveredId()));
+            if (!delivered) {
+                return;
+            }
+            stringRedisTemplate.delete(streamKey);
+        }
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.SECKILL_STREAMS_KEY, streamKey);
+        createdStreams.remove(streamKey);
+        log.info("删除了处理完的订单消息队列{}", streamKey);
+    }
+
+    // 滚动发布时旧节点可能留下没确认的消息，把空闲足够久的消息转到当前消费者名下
+    private void claimPendingOrders(String streamKey, String consumer) {
+        try {
+            Long claimed = redisScripts.execute("stream-claim", Long.class,
+                    Collections.singletonList(streamKey),
+                    RedisConstants.SECKILL_STREAM_GROUP,
+                    consumer,
+                    RedisConstants.SECKILL_STREAM_CLAIM_IDLE.toString(),
+                    "1000");
+            if (claimed != null && claimed > 0) {
+                log.info("认领了{}条{}里未确认的订单消息", claimed, streamKey);
+            }
+        } catch (Exception e) {
+            log.error("认领未确认的订单消息失败", e);
+        }
+    }
+
+    @Override
+    public Result queryOrderPartitions() {
+        // stream模式下分区的积压就是消费者pending-list里还没确认的消息
+        Map<String, Long> pendingOfConsumer = new HashMap<>();
+        if (isStreamMode()) {
+            for (String streamKey : streamKeys) {
+                PendingMessagesSummary summary = stringRedisTemplate.opsForStream()
+                        .pending(streamKey, RedisConstants.SECKILL_STREAM_GROUP);
+                summary.getPendingMessagesPerConsumer().forEach((consumer, count) -> pendingOfConsumer.merge(consumer, count, Long::sum));
+            }
+        }
+        List<OrderPartitionDTO> list = new ArrayList<>(partitions.length);
+        for (OrderPartition partition : partitions) {
+            list.add(partition.toDTO(pendingOfConsumer.getOrDefault(partition.getName(), 0L)));
+        }
+        return Result.ok(list);
+    }
+
+    // 逐个写库，写库异常的交给重试线程，重复下单和库存不足重试也没用，直接进入死信
+    // onComplete在订单最终写库或进入死信后调用，stream模式下确认消息，queue模式下释放预写日志
+    private void handleVoucherOrder(VoucherOrder voucherOrder, Runnable onComplete) {
+        OrderFailReason reason;
+        try {
+            // 同一个用户的订单只会在同一个分区线程里处理，不用再加用户锁
+            reason = proxy.createVoucherOrder(voucherOrder);
+        } catch (Exception e) {
+            log.error("订单{}处理异常，稍后重试", voucherOrder.getId(), e);
+            retryVoucherOrder(voucherOrder, 1, e, onComplete);
             return;
         }
+        // 写库的结果已经确定，后面的异常不能再触发重试，否则写成功的订单会被当成重复下单
+        completeVoucherOrder(voucherOrder, reason, 0, null, onComplete);
+    }
+
+    // 第attempt次重试，延迟按指数增长，次数用完后进入死信
+    private void retryVoucherOrder(VoucherOrder voucherOrder, int attempt, Exception error, Runnable onComplete) {
+        if (attempt > retryMaxAttempts) {
+            completeVoucherOrder(voucherOrder, OrderFailReason.ERROR, attempt - 1, error, onComplete);
+            return;
+        }
+        long delay = Math.min(retryBaseDelayMillis << Math.min(attempt - 1, 30), retryMaxDelayMillis);
+        retryExecutor.schedule(() -> {
+            OrderFailReason reason;
+            try {
+                reason = proxy.createVoucherOrder(voucherOrder);
+            } catch (Exception e) {
+                log.error("订单{}第{}次重试失败", voucherOrder.getId(), attempt, e);
+                retryVoucherOrder(voucherOrder, attempt + 1, e, onComplete);
+                return;
+            }
+            completeVoucherOrder(voucherOrder, reason, attempt, null, onComplete);
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    // 订单处理结束，reason为null表示写库成功，否则进入死信
+    private void completeVoucherOrder(VoucherOrder voucherOrder, OrderFailReason reason, int attempts, Exception error, Runnable onComplete) {
+        if (reason == null) {
+            ordersCreated(Collections.singletonList(voucherOrder));
+        } else {
+            orderDeadLetterQueue.add(voucherOrder, reason, attempts, error);
+            orderStatusCache.update(Collections.singletonList(voucherOrder), OrderStatusCache.Status.FAILED);
+        }
+        if (onComplete != null) {
+            onComplete.run();
+        }
+    }
+
+    // 写入数据库的订单标记为已创建，一批里其他的订单是重复下单被跳过的，进入死信并标记为失败
+    private void updateOrderStatus(List<VoucherOrder> voucherOrders, List<VoucherOrder> created) {
+        ordersCreated(created);
+        if (created.size() < voucherOrders.size()) {
+            Set<VoucherOrder> createdSet = Collections.newSetFromMap(new IdentityHashMap<>());
+            createdSet.addAll(created);
+            List<VoucherOrder> duplicates = voucherOrders.stream().filter(o -> !createdSet.contains(o)).collect(Collectors.toList());
+            for (VoucherOrder voucherOrder : duplicates) {
+                orderDeadLetterQueue.add(voucherOrder, OrderFailReason.DUPLICATE, 0, null);
+            }
+            orderStatusCache.update(duplicates, OrderStatusCache.Status.FAILED);
+        }
+    }
+
+    // 订单写入数据库后标记为已创建，并开始计算支付超时
+    private void ordersCreated(List<VoucherOrder> created) {
+        orderStatusCache.update(created, OrderStatusCache.Status.CREATED);
         try {
-            proxy.createVoucherOrder(voucherOrder);
-            return ;
+            orderTimeoutQueue.add(created);
+        } catch (Exception e) {
+            // 订单已经提交，不能再让调用方重试
+            log.error("订单加入超时队列失败", e);
+        }
+    }
 
-        } finally {
-            lock.unlock();
+    // 分批取出到期的订单取消，直到没有到期的订单
+    private void cancelTimeoutOrders() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Long> orderIds = orderTimeoutQueue.poll(timeoutBatchSize);
+                if (orderIds.isEmpty()) {
+                    return;
+                }
+                List<VoucherOrder> cancelled = proxy.cancelUnpaidOrders(orderIds);
+                // 数据库事务提交后再补Redis库存，补完再标记已还，中途宕机时租期过后这些订单会被重新取出来补
+                orderTimeoutQueue.returnStock(cancelled);
+                if (!cancelled.isEmpty()) {
+                    update().set("stock_returned", 1)
+                            .in("id", cancelled.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                            .update();
+                }
+                orderTimeoutQueue.remove(orderIds);
+                if (!cancelled.isEmpty()) {
+                    log.info("取消了{}个超时未支付的订单", cancelled.size());
+                }
+                if (orderIds.size() < timeoutBatchSize) {
+                    return;
+                }
+            }
+        } catch (Exception e) {
+            // 没处理完的订单租期过后会被重新取出，已取消但没还库存的订单只补Redis库存，不会再加一次数据库库存
+            log.error("取消超时订单异常", e);
         }
     }
 
+    @Override
+    @Transactional
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        // 按主键锁住还未支付的订单，已支付的不会被选中，锁住后支付也改不了状态
+        // 上次取消后宕机、Redis库存还没还的订单也选出来，只还Redis库存
+        List<VoucherOrder> orders = query()
+                .select("id", "user_id", "voucher_id", "status")
+                .in("id", orderIds)
+                .and(wrapper -> wrapper.eq("status", 1)
+                        .or(cancelled -> cancelled.eq("status", 4).eq("stock_returned", 0)))
+                .last("for update")
+                .list();
+        List<VoucherOrder> unpaid = orders.stream().filter(o -> o.getStatus() == 1).collect(Collectors.toList());
+        if (unpaid.isEmpty()) {
+            return orders;
+        }
+        // cancel_id改成订单id，取消的订单不再占用一人一单的唯一索引
+        update().set("status", 4)
+                .setSql("cancel_id = id")
+                .in("id", unpaid.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                .update();
+
+        // 按优惠券分组，每张券只加一次库存
+        Map<Long, Long> countOfVoucher = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        for (Map.Entry<Long, Long> entry : countOfVoucher.entrySet()) {
+            seckillVoucherService.update().setSql("stock = stock + " + entry.getValue())
+                    .eq("voucher_id", entry.getKey())
+                    .update();
+        }
+        return orders;
+    }
+
+    @Override
+    public Result queryDeadLetters(Integer count) {
+        Map<String, Object> result = new HashMap<>(2);
+        result.put("counts", orderDeadLetterQueue.counts());
+        result.put("deadLetters", orderDeadLetterQueue.list(count));
+        return Result.ok(result);
+    }
+
+    @Override
+    public Result replayDeadLetter(Long orderId) {
+        DeadLetterDTO deadLetter = orderDeadLetterQueue.get(orderId);
+        if (deadLetter == null) {
+            return Result.fail("死信订单不存在");
+        }
+        if (OrderFailReason.DUPLICATE.name().equals(deadLetter.getReason())) {
+            return Result.fail("用户已经有这张券的订单，不需要重放");
+        }
+        // 先移出死信，避免同一个订单被并发重放两次
+        if (!orderDeadLetterQueue.remove(orderId)) {
+            return Result.fail("死信订单已经在重放");
+        }
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(deadLetter.getOrderId());
+        voucherOrder.setUserId(deadLetter.getUserId());
+        voucherOrder.setVoucherId(deadLetter.getVoucherId());
+        // 进入死信时撤销了Redis里的库存和下单记录，重新占用
+        int result = orderDeadLetterQueue.reserve(voucherOrder);
+        if (result != 0) {
+            orderDeadLetterQueue.restore(deadLetter);
+            return Result.fail(result == 1 ? "优惠券已售罄" : "您已购买过该优惠券");
+        }
+        orderStatusCache.update(Collections.singletonList(voucherOrder), OrderStatusCache.Status.PENDING);
+        if (isStreamMode()) {
+            Map<String, String> message = new HashMap<>(3);
+            message.put("userId", voucherOrder.getUserId().toString());
+            message.put("voucherId", voucherOrder.getVoucherId().toString());
+            message.put("id", voucherOrder.getId().toString());
+            // 写进用户主分片的队列，和秒杀脚本一致
+            String streamKey = streamKeyOf(voucherOrder.getVoucherId(), SeckillKeys.homeShard(voucherOrder.getUserId(), stockShards));
+            stringRedisTemplate.opsForStream().add(StreamRecords.newRecord()
+                    .in(streamKey).ofMap(message));
+            return Result.ok(orderId);
+        }
+        try {
+            if (partitionOf(voucherOrder.getUserId()).offer(voucherOrder)) {
+                return Result.ok(orderId);
+            }
+        } catch (IOException e) {
+            log.error("订单{}写入预写日志失败", orderId, e);
+        }
+        // 没能入队，重新进入死信，再次补偿
+        orderDeadLetterQueue.add(voucherOrder, OrderFailReason.ERROR, deadLetter.getAttempts(), null);
+        return Result.fail("系统繁忙，请稍后再试");
+    }
+
+    @Override
+    public Result queryAdmission() {
+        return Result.ok(admissionController.toDTO(partitions));
+    }
+
+    @Override
+    public Result queryOrderStatus(Long orderId) {
+        OrderStatusCache.Status status = orderStatusCache.query(orderId);
+        if (status != null) {
+            return Result.ok(status.name());
+        }
+        // 状态表里没有：超过保留期的订单，或者不存在的订单id，按主键查数据库
+        if (getById(orderId) == null) {
+            return Result.fail("订单不存在");
+        }
+        return Result.ok(OrderStatusCache.Status.CREATED.name());
+    }
+
+    // 事务要通过代理对象调用才生效，消费线程启动时还没有请求进来，拿不到AopContext里的代理，所以注入自己
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
     @Override
@@ -149,36 +957,152 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         }*/
 
         // 改用redis提高响应速度
+        // 本地已经标记售罄的券直接返回，不用再执行脚本
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("优惠券已售罄");
+        }
         Long userId = UserHolder.getUser().getId();
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString());
-        int resultInt = result.intValue();
+        // 消费跟不上时在执行脚本前拒绝，这时还没扣库存，用户重试就行
+        boolean admitted = isStreamMode()
+                ? admissionController.tryAdmit(partitions)
+                : admissionController.tryAdmit(partitionOf(userId));
+        if (!admitted) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
+        // 开启库存租约时先在本地扣库存，本地没有了才去Redis租一块，返回值和秒杀脚本一致
+        boolean leased = seckillStockLease.isEnabled();
+        int homeShard = SeckillKeys.homeShard(userId, stockShards);
+        int acquired = leased ? seckillStockLease.acquire(voucherId, homeShard) : 0;
+        if (acquired == 1) {
+            soldOutRegistry.markSoldOut(voucherId);
+            return Result.fail("优惠券已售罄");
+        }
+        if (acquired == 4) {
+            return Result.fail("优惠券已过可购买时间");
+        }
+        // 订单id在秒杀脚本里从主分片的号段分配，抢到了才分配，下单只访问一次Redis
+        long[] seckilled = seckill(voucherId, userId, homeShard, leased);
+        if (seckilled[0] == 1 && seckillStockShards.borrow(voucherId, homeShard) > 0) {
+            // 主分片卖完了，从其他分片调了库存过来，再试一次
+            seckilled = seckill(voucherId, userId, homeShard, false);
+        }
+        if (seckilled[0] == 5) {
+            // 本节点被当成宕机节点，租约已经被回收，本地的库存作废，重新租一块再试一次
+            seckillStockLease.revoke(voucherId, homeShard);
+            acquired = seckillStockLease.acquire(voucherId, homeShard);
+            seckilled = acquired == 0 ? seckill(voucherId, userId, homeShard, true) : new long[]{acquired, 0};
+        }
+        int result = (int) seckilled[0];
+        long orderId = seckilled[1];
+        if (leased && acquired == 0 && result != 0 && result != 1 && result != 5) {
+            // 没有下单，本地扣的库存放回去；返回5时扣的是作废的库存，不放回；重新租没租到时没有扣
+            seckillStockLease.release(voucherId, homeShard);
+        }
+        if (result == 5) {
+            return Result.fail("系统繁忙，请稍后重试");
+        }
         if (result == 1) {
+            soldOutRegistry.markSoldOut(voucherId);
             return Result.fail("优惠券已售罄");
         }
         if (result == 2) {
             return Result.fail("您已购买过该优惠券");
         }
+        if (result == 3) {
+            return Result.fail("优惠券未到可购买时间");
+        }
+        if (result == 4) {
+            return Result.fail("优惠券已过可购买时间");
+        }
 
         // 创建订单
-        if (resultInt == 0) {
-            // TODO 保存阻塞队列
-            long orderId = redisIdWorker.nextId("order");
-            VoucherOrder voucherOrder = new VoucherOrder();
-            voucherOrder.setId(orderId);
-            voucherOrder.setVoucherId(voucherId);
-            voucherOrder.setUserId(userId);
-            orderTasks.add(voucherOrder);
-
-            proxy = (IVoucherOrderService) AopContext.currentProxy();
-
+        if (result == 0) {
+            if (isStreamMode()) {
+                // 订单已经在lua脚本里写入消息队列
+                orderStatusCache.pending(orderId);
+                return Result.ok(orderId);
+            }
+            // 保存到分区队列，受理时间用来算队列里的订单等了多久，VoucherOrder对象由消费线程创建
+            boolean offered;
+            try {
+                offered = partitionOf(userId).offer(orderId, userId, voucherId, System.currentTimeMillis());
+            } catch (IOException e) {
+                // 写不进预写日志的订单不能受理，撤销脚本里的扣减
+                log.error("订单{}写入预写日志失败", orderId, e);
+                orderDeadLetterQueue.add(newVoucherOrder(orderId, userId, voucherId), OrderFailReason.ERROR, 0, e);
+                return Result.fail("系统繁忙，请稍后再试");
+            }
+            if (!offered) {
+                // 准入检查后到入队前队列满了，撤销脚本里的扣减，用户可以重试
+                orderTimeoutQueue.returnStock(Collections.singletonList(newVoucherOrder(orderId, userId, voucherId)));
+                return Result.fail("系统繁忙，请稍后重试");
+            }
+            orderStatusCache.pending(orderId);
             return Result.ok(orderId);
         }
         return Result.ok();
     }
 
+    // 执行秒杀脚本，用到的key都在用户的主分片里：可购时间、下单记录、库存、订单id号段
+    // 返回{结果码, 订单id}，成功时才有订单id
+    private long[] seckill(Long voucherId, Long userId, int homeShard, boolean leased) {
+        List<String> keys = new ArrayList<>(7);
+        keys.add(SeckillKeys.timeKey(voucherId, homeShard, stockShards));
+        keys.add(SeckillKeys.buyerKey(voucherId, userId, stockShards, buyerBitmap));
+        keys.add(SeckillKeys.stockKey(voucherId, homeShard, stockShards));
+        keys.add(SeckillKeys.leaseKey(voucherId, homeShard, stockShards));
+        keys.add(SeckillKeys.chunksKey(voucherId, homeShard, stockShards));
+        keys.add(SeckillKeys.idKey(voucherId, homeShard, stockShards));
+        if (isStreamMode()) {
+            keys.add(streamKeyOf(voucherId, homeShard));
+        }
+        // 订单id的时间戳部分和序列号所属的日期由java算好传进去，格式和RedisIdWorker一致
+        LocalDateTime now = LocalDateTime.now();
+        String idDay = RedisIdWorker.countKeyOf("order", now);
+        while (true) {
+            List<?> results = redisScripts.execute("seckill", List.class,
+                    keys,
+                    voucherId.toString(),
+                    userId.toString(),
+                    idDay,
+                    String.valueOf(System.currentTimeMillis()),
+                    buyerBitmap ? String.valueOf(SeckillKeys.offset(userId, stockShards)) : "",
+                    leased ? "1" : "0",
+                    seckillStockLease.getNodeId(),
+                    String.valueOf(RedisIdWorker.timestampOf(now)));
+            long result = (Long) results.get(0);
+            if (result == 0) {
+                return new long[]{0, Long.parseLong((String) results.get(1))};
+            }
+            if (result != 6) {
+                return new long[]{result, 0};
+            }
+            // 分片的号段用完了或者换天了，领一个新号段放进分片的slot里再执行一次
+            refillIdSegment(keys.get(5), idDay, now);
+        }
+    }
+
+    // 全局的序列号key和分片不在同一个slot，脚本里不能访问，由java领取号段后写进分片
+    // 两个节点同时领时后写的覆盖先写的，被覆盖的号段剩下的序列号不再使用，不会重复
+    private void refillIdSegment(String idKey, String idDay, LocalDateTime now) {
+        long end = redisIdWorker.nextSegment("order", now);
+        Map<String, String> segment = new HashMap<>(4);
+        segment.put("day", idDay);
+        segment.put("next", String.valueOf(end - redisIdWorker.getSegmentSize() + 1));
+        segment.put("end", String.valueOf(end));
+        stringRedisTemplate.opsForHash().putAll(idKey, segment);
+        // 号段只在领取的那一天有效
+        stringRedisTemplate.expire(idKey, 1, TimeUnit.DAYS);
+    }
+
+    private static VoucherOrder newVoucherOrder(long orderId, long userId, long voucherId) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        return voucherOrder;
+    }
+
     @Transactional
     public Result createVoucherOrder(Long voucherId) {
         // 一人一单
@@ -215,30 +1139,74 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     }
 
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
-        // 一人一单
-        Long userId = voucherOrder.getId();
-
-        int count = query()
-                .eq("user_id", userId)
-                .eq("voucher_id", voucherOrder.getVoucherId())
-                .count();
-        if (count > 0) {
-            log.error("用户{}已购买过该优惠券", userId);  // 理论上不可能存在这种情况，redis已经做过并发判断了
-            return;
+    public OrderFailReason createVoucherOrder(VoucherOrder voucherOrder) {
+        // 一人一单由唯一索引(user_id, voucher_id, cancel_id)保证，重复的订单插入时被忽略，不用先查询
+        if (getBaseMapper().insertBatchIgnoreDuplicate(Collections.singletonList(voucherOrder)) == 0) {
+            // 重放或重复投递的订单，上次已经写入了
+            if (getById(voucherOrder.getId()) != null) {
+                return null;
+            }
+            log.error("用户{}已购买过该优惠券", voucherOrder.getUserId());  // 理论上不可能存在这种情况，redis已经做过并发判断了
+            return OrderFailReason.DUPLICATE;
         }
 
-        // 扣减库存
+        // 扣减库存，放在插入之后，热点行的锁持有时间最短
         boolean success = seckillVoucherService.update().setSql("stock = stock - 1")
                 .eq("voucher_id", voucherOrder.getVoucherId())
                 .ge("stock", 1)
                 .update();
         if (!success) {
             log.error("优惠券{}已售罄", voucherOrder.getVoucherId()); // 不太可能出现
-            return;
+            // 回滚插入的订单
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return OrderFailReason.SOLD_OUT;
         }
+        return null;
+    }
 
-        // 创建订单
-        save(voucherOrder);
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrders(List<VoucherOrder> voucherOrders) {
+        // 按优惠券分组，每张券一条多行INSERT、扣一次库存
+        Map<Long, List<VoucherOrder>> ordersOfVoucher = voucherOrders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        List<VoucherOrder> created = new ArrayList<>(voucherOrders.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : ordersOfVoucher.entrySet()) {
+            Long voucherId = entry.getKey();
+            List<VoucherOrder> orders = entry.getValue();
+            // 一人一单由唯一索引保证，数据库里或者这一批里已经有这个用户的订单时，这一行被忽略
+            int inserted = getBaseMapper().insertBatchIgnoreDuplicate(orders);
+            if (inserted < orders.size()) {
+                // 按主键查出哪些订单在库里，包括这次插入的和重放时上次已经插入的，其他的是重复下单
+                Set<Long> savedIds = query()
+                        .select("id")
+                        .in("id", orders.stream().map(VoucherOrder::getId).collect(Collectors.toList()))
+                        .list()
+                        .stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+                for (VoucherOrder voucherOrder : orders) {
+                    if (savedIds.contains(voucherOrder.getId())) {
+                        created.add(voucherOrder);
+                    } else {
+                        log.error("用户{}已购买过该优惠券", voucherOrder.getUserId());
+                    }
+                }
+            } else {
+                created.addAll(orders);
+            }
+            if (inserted == 0) {
+                continue;
+            }
+
+            // 扣减库存，stock = stock - k，只扣这次插入的订单
+            boolean success = seckillVoucherService.update().setSql("stock = stock - " + inserted)
+                    .eq("voucher_id", voucherId)
+                    .ge("stock", inserted)
+                    .update();
+            if (!success) {
+                // 库存不够整批扣，回滚整批，交给调用方逐个处理
+                throw new RuntimeException("优惠券" + voucherId + "库存不足" + inserted);
+            }
+        }
+        return created;
     }
 }
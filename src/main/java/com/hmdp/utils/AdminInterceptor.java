@@ -0,0 +1,36 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.web.servlet.HandlerInterceptor;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+/**
+ * 运维接口的权限检查，请求头admin-token要和配置的口令一致，没有配置口令时运维接口都拒绝
+ */
+public class AdminInterceptor implements HandlerInterceptor {
+
+    private final byte[] token;
+
+    public AdminInterceptor(String token) {
+        this.token = StrUtil.isBlank(token) ? null : token.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        String header = request.getHeader("admin-token");
+        // 按固定时间比较，不能从响应时间猜口令
+        if (token != null && header != null && MessageDigest.isEqual(token, header.getBytes(StandardCharsets.UTF_8))) {
+            return true;
+        }
+        response.setStatus(403);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("没有权限")));
+        return false;
+    }
+}
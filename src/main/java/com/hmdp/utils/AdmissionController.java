@@ -0,0 +1,68 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.AdmissionDTO;
+import com.hmdp.dto.OrderPartitionDTO;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 秒杀下单的准入控制，执行秒杀脚本前先看订单分区的积压，消费跟不上时直接拒绝
+ * 脚本扣了库存之后再因为队列满了失败，用户就"买到"了一张不会写库的券
+ */
+public class AdmissionController {
+
+    // 队列里的订单数达到容量的这个比例就拒绝
+    private final double maxDepthRatio;
+
+    // 新订单要排队超过这个时间(毫秒)就拒绝
+    private final long maxWaitMillis;
+
+    private final LongAdder admitted = new LongAdder();
+
+    private final LongAdder shedByDepth = new LongAdder();
+
+    private final LongAdder shedByWait = new LongAdder();
+
+    public AdmissionController(double maxDepthRatio, long maxWaitMillis) {
+        this.maxDepthRatio = maxDepthRatio;
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * 订单会进入的分区是否还能接单，queue模式下传用户所在的分区，stream模式下不知道哪个消费者会读到，传所有分区
+     */
+    public boolean tryAdmit(OrderPartition... partitions) {
+        for (OrderPartition partition : partitions) {
+            if (partition.isFull(maxDepthRatio)) {
+                shedByDepth.increment();
+                return false;
+            }
+            if (partition.waitMillis() >= maxWaitMillis) {
+                shedByWait.increment();
+                return false;
+            }
+        }
+        admitted.increment();
+        return true;
+    }
+
+    /**
+     * 当前的监控数据
+     */
+    public AdmissionDTO toDTO(OrderPartition[] partitions) {
+        AdmissionDTO dto = new AdmissionDTO();
+        dto.setAdmitted(admitted.sum());
+        dto.setShedByDepth(shedByDepth.sum());
+        dto.setShedByWait(shedByWait.sum());
+        long queueDepth = 0;
+        long waitMillis = 0;
+        for (OrderPartition partition : partitions) {
+            OrderPartitionDTO partitionDTO = partition.toDTO(0);
+            queueDepth += partitionDTO.getQueueSize();
+            waitMillis = Math.max(waitMillis, partitionDTO.getWaitMillis());
+        }
+        dto.setQueueDepth(queueDepth);
+        dto.setWaitMillis(waitMillis);
+        return dto;
+    }
+}
@@ -0,0 +1,469 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * 按字段顺序的紧凑二进制格式，不写字段名，整数用变长编码，空字段只占位掩码里的一位
+ * 数据开头：标记字节、版本、类型编号，之后是字段。每个类型的字段顺序固定，只能在末尾加字段，加字段时要换新的类型编号
+ * 只支持注册过的类型：Shop、ShopType、Voucher、UserDTO、RedisData，以及它们的列表
+ */
+@Component
+public class BinaryCacheCodec implements CacheCodec {
+
+    // 不是JSON能出现的开头
+    static final byte MAGIC = (byte) 0xB7;
+
+    static final byte VERSION = 1;
+
+    private static final int NULL_TYPE = 0;
+
+    private static final int LIST_TYPE = 1;
+
+    private static final int REDIS_DATA_TYPE = 2;
+
+    // 类型编号 -> 结构
+    private static final Map<Integer, Schema<?>> SCHEMAS_BY_ID = new HashMap<>();
+
+    private static final Map<Class<?>, Schema<?>> SCHEMAS_BY_TYPE = new HashMap<>();
+
+    static {
+        register(new Schema<>(10, Shop.class, Shop::new, Arrays.asList(
+                field(FieldType.LONG, Shop::getId, Shop::setId),
+                field(FieldType.STRING, Shop::getName, Shop::setName),
+                field(FieldType.LONG, Shop::getTypeId, Shop::setTypeId),
+                field(FieldType.STRING, Shop::getImages, Shop::setImages),
+                field(FieldType.STRING, Shop::getArea, Shop::setArea),
+                field(FieldType.STRING, Shop::getAddress, Shop::setAddress),
+                field(FieldType.DOUBLE, Shop::getX, Shop::setX),
+                field(FieldType.DOUBLE, Shop::getY, Shop::setY),
+                field(FieldType.LONG, Shop::getAvgPrice, Shop::setAvgPrice),
+                field(FieldType.INT, Shop::getSold, Shop::setSold),
+                field(FieldType.INT, Shop::getComments, Shop::setComments),
+                field(FieldType.INT, Shop::getScore, Shop::setScore),
+                field(FieldType.STRING, Shop::getOpenHours, Shop::setOpenHours),
+                field(FieldType.DATE_TIME, Shop::getCreateTime, Shop::setCreateTime),
+                field(FieldType.DATE_TIME, Shop::getUpdateTime, Shop::setUpdateTime),
+                field(FieldType.DOUBLE, Shop::getDistance, Shop::setDistance))));
+        register(new Schema<>(11, ShopType.class, ShopType::new, Arrays.asList(
+                field(FieldType.LONG, ShopType::getId, ShopType::setId),
+                field(FieldType.STRING, ShopType::getName, ShopType::setName),
+                field(FieldType.STRING, ShopType::getIcon, ShopType::setIcon),
+                field(FieldType.INT, ShopType::getSort, ShopType::setSort),
+                field(FieldType.DATE_TIME, ShopType::getCreateTime, ShopType::setCreateTime),
+                field(FieldType.DATE_TIME, ShopType::getUpdateTime, ShopType::setUpdateTime))));
+        register(new Schema<>(12, Voucher.class, Voucher::new, Arrays.asList(
+                field(FieldType.LONG, Voucher::getId, Voucher::setId),
+                field(FieldType.LONG, Voucher::getShopId, Voucher::setShopId),
+                field(FieldType.STRING, Voucher::getTitle, Voucher::setTitle),
+                field(FieldType.STRING, Voucher::getSubTitle, Voucher::setSubTitle),
+                field(FieldType.STRING, Voucher::getRules, Voucher::setRules),
+                field(FieldType.LONG, Voucher::getPayValue, Voucher::setPayValue),
+                field(FieldType.LONG, Voucher::getActualValue, Voucher::setActualValue),
+                field(FieldType.INT, Voucher::getType, Voucher::setType),
+                field(FieldType.INT, Voucher::getStatus, Voucher::setStatus),
+                field(FieldType.INT, Voucher::getStock, Voucher::setStock),
+                field(FieldType.DATE_TIME, Voucher::getBeginTime, Voucher::setBeginTime),
+                field(FieldType.DATE_TIME, Voucher::getEndTime, Voucher::setEndTime),
+                field(FieldType.DATE_TIME, Voucher::getCreateTime, Voucher::setCreateTime),
+                field(FieldType.DATE_TIME, Voucher::getUpdateTime, Voucher::setUpdateTime))));
+        register(new Schema<>(13, UserDTO.class, UserDTO::new, Arrays.asList(
+                field(FieldType.LONG, UserDTO::getId, UserDTO::setId),
+                field(FieldType.STRING, UserDTO::getNickName, UserDTO::setNickName),
+                field(FieldType.STRING, UserDTO::getIcon, UserDTO::setIcon))));
+    }
+
+    // 每个线程复用一个写缓冲
+    private static final ThreadLocal<Writer> WRITERS = ThreadLocal.withInitial(() -> new Writer(256));
+
+    @Override
+    public String name() {
+        return "binary";
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        return bytes.length >= 2 && bytes[0] == MAGIC && bytes[1] == VERSION;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        Writer out = WRITERS.get();
+        out.reset();
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        writeValue(out, value);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        Reader in = reader(bytes);
+        int typeId = in.readVarInt();
+        return type.cast(readValue(in, typeId, type));
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        Reader in = reader(bytes);
+        int typeId = in.readVarInt();
+        if (typeId != LIST_TYPE) {
+            throw new IllegalArgumentException("缓存数据不是列表：" + typeId);
+        }
+        int size = in.readVarInt();
+        List<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(elementType.cast(readValue(in, in.readVarInt(), elementType)));
+        }
+        return list;
+    }
+
+    @Override
+    public RedisData decodeWithLogicalExpire(byte[] bytes, Class<?> dataType) {
+        Reader in = reader(bytes);
+        int typeId = in.readVarInt();
+        if (typeId != REDIS_DATA_TYPE) {
+            throw new IllegalArgumentException("缓存数据不是逻辑过期的数据：" + typeId);
+        }
+        return readRedisData(in, dataType);
+    }
+
+    private static Reader reader(byte[] bytes) {
+        if (bytes.length < 2 || bytes[0] != MAGIC) {
+            throw new IllegalArgumentException("不是二进制格式的缓存数据");
+        }
+        if (bytes[1] != VERSION) {
+            throw new IllegalArgumentException("不支持的二进制缓存版本：" + bytes[1]);
+        }
+        return new Reader(bytes, 2);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void writeValue(Writer out, Object value) {
+        if (value == null) {
+            out.writeVarInt(NULL_TYPE);
+        } else if (value instanceof RedisData) {
+            RedisData redisData = (RedisData) value;
+            out.writeVarInt(REDIS_DATA_TYPE);
+            out.writeBoolean(redisData.getExpireTime() != null);
+            if (redisData.getExpireTime() != null) {
+                FieldType.DATE_TIME.write(out, redisData.getExpireTime());
+            }
+            writeValue(out, redisData.getData());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.writeVarInt(LIST_TYPE);
+            out.writeVarInt(list.size());
+            for (Object element : list) {
+                writeValue(out, element);
+            }
+        } else {
+            Schema<Object> schema = (Schema<Object>) SCHEMAS_BY_TYPE.get(value.getClass());
+            if (schema == null) {
+                throw new IllegalArgumentException("二进制缓存不支持的类型：" + value.getClass().getName());
+            }
+            out.writeVarInt(schema.id);
+            schema.write(out, value);
+        }
+    }
+
+    private static Object readValue(Reader in, int typeId, Class<?> dataType) {
+        if (typeId == NULL_TYPE) {
+            return null;
+        }
+        if (typeId == REDIS_DATA_TYPE) {
+            return readRedisData(in, dataType);
+        }
+        Schema<?> schema = SCHEMAS_BY_ID.get(typeId);
+        if (schema == null) {
+            throw new IllegalArgumentException("未知的二进制缓存类型：" + typeId);
+        }
+        return schema.read(in);
+    }
+
+    private static RedisData readRedisData(Reader in, Class<?> dataType) {
+        RedisData redisData = new RedisData();
+        if (in.readBoolean()) {
+            redisData.setExpireTime(FieldType.DATE_TIME.read(in));
+        }
+        redisData.setData(readValue(in, in.readVarInt(), dataType));
+        return redisData;
+    }
+
+    private static void register(Schema<?> schema) {
+        SCHEMAS_BY_ID.put(schema.id, schema);
+        SCHEMAS_BY_TYPE.put(schema.type, schema);
+    }
+
+    private static <T, V> Field<T, V> field(FieldType<V> fieldType, Function<T, V> getter, BiConsumer<T, V> setter) {
+        return new Field<>(fieldType, getter, setter);
+    }
+
+    /**
+     * 一个类型的结构：类型编号和按顺序的字段
+     */
+    static class Schema<T> {
+        final int id;
+        final Class<T> type;
+        final Supplier<T> constructor;
+        final List<Field<T, ?>> fields;
+
+        Schema(int id, Class<T> type, Supplier<T> constructor, List<Field<T, ?>> fields) {
+            if (fields.size() > 63) {
+                throw new IllegalArgumentException("字段太多：" + type.getName());
+            }
+            this.id = id;
+            this.type = type;
+            this.constructor = constructor;
+            this.fields = fields;
+        }
+
+        void write(Writer out, T value) {
+            // 先写哪些字段不为空的掩码，为空的字段不写
+            long present = 0;
+            for (int i = 0; i < fields.size(); i++) {
+                if (fields.get(i).getter.apply(value) != null) {
+                    present |= 1L << i;
+                }
+            }
+            out.writeVarLong(present);
+            for (int i = 0; i < fields.size(); i++) {
+                if ((present & (1L << i)) != 0) {
+                    fields.get(i).write(out, value);
+                }
+            }
+        }
+
+        T read(Reader in) {
+            T value = constructor.get();
+            long present = in.readVarLong();
+            for (int i = 0; i < fields.size(); i++) {
+                if ((present & (1L << i)) != 0) {
+                    fields.get(i).read(in, value);
+                }
+            }
+            return value;
+        }
+    }
+
+    static class Field<T, V> {
+        final FieldType<V> fieldType;
+        final Function<T, V> getter;
+        final BiConsumer<T, V> setter;
+
+        Field(FieldType<V> fieldType, Function<T, V> getter, BiConsumer<T, V> setter) {
+            this.fieldType = fieldType;
+            this.getter = getter;
+            this.setter = setter;
+        }
+
+        void write(Writer out, T value) {
+            fieldType.write(out, getter.apply(value));
+        }
+
+        void read(Reader in, T value) {
+            setter.accept(value, fieldType.read(in));
+        }
+    }
+
+    abstract static class FieldType<V> {
+
+        static final FieldType<Long> LONG = new FieldType<Long>() {
+            @Override
+            void write(Writer out, Long value) {
+                out.writeZigZag(value);
+            }
+
+            @Override
+            Long read(Reader in) {
+                return in.readZigZag();
+            }
+        };
+
+        static final FieldType<Integer> INT = new FieldType<Integer>() {
+            @Override
+            void write(Writer out, Integer value) {
+                out.writeZigZag(value);
+            }
+
+            @Override
+            Integer read(Reader in) {
+                return (int) in.readZigZag();
+            }
+        };
+
+        static final FieldType<Double> DOUBLE = new FieldType<Double>() {
+            @Override
+            void write(Writer out, Double value) {
+                out.writeLong(Double.doubleToLongBits(value));
+            }
+
+            @Override
+            Double read(Reader in) {
+                return Double.longBitsToDouble(in.readLong());
+            }
+        };
+
+        static final FieldType<String> STRING = new FieldType<String>() {
+            @Override
+            void write(Writer out, String value) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeVarInt(bytes.length);
+                out.writeBytes(bytes);
+            }
+
+            @Override
+            String read(Reader in) {
+                return in.readString(in.readVarInt());
+            }
+        };
+
+        // 秒和纳秒分开写，和时区无关
+        static final FieldType<LocalDateTime> DATE_TIME = new FieldType<LocalDateTime>() {
+            @Override
+            void write(Writer out, LocalDateTime value) {
+                out.writeZigZag(value.toEpochSecond(ZoneOffset.UTC));
+                out.writeVarInt(value.getNano());
+            }
+
+            @Override
+            LocalDateTime read(Reader in) {
+                long seconds = in.readZigZag();
+                return LocalDateTime.ofEpochSecond(seconds, in.readVarInt(), ZoneOffset.UTC);
+            }
+        };
+
+        abstract void write(Writer out, V value);
+
+        abstract V read(Reader in);
+    }
+
+    static class Writer {
+        private byte[] buffer;
+        private int position;
+
+        Writer(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void reset() {
+            position = 0;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buffer, position);
+        }
+
+        private void ensure(int length) {
+            if (position + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + length));
+            }
+        }
+
+        void writeByte(byte b) {
+            ensure(1);
+            buffer[position++] = b;
+        }
+
+        void writeBoolean(boolean b) {
+            writeByte(b ? (byte) 1 : (byte) 0);
+        }
+
+        void writeBytes(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        void writeVarInt(int value) {
+            writeVarLong(value & 0xFFFFFFFFL);
+        }
+
+        // 每字节7位，最高位表示后面还有
+        void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        // 负数也用很少的字节
+        void writeZigZag(long value) {
+            writeVarLong((value << 1) ^ (value >> 63));
+        }
+
+        void writeLong(long value) {
+            ensure(8);
+            for (int i = 7; i >= 0; i--) {
+                buffer[position++] = (byte) (value >>> (i * 8));
+            }
+        }
+    }
+
+    static class Reader {
+        private final byte[] buffer;
+        private int position;
+
+        Reader(byte[] buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        boolean readBoolean() {
+            return buffer[position++] != 0;
+        }
+
+        int readVarInt() {
+            return (int) readVarLong();
+        }
+
+        long readVarLong() {
+            long value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = buffer[position++];
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+
+        long readZigZag() {
+            long value = readVarLong();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        long readLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (buffer[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        String readString(int length) {
+            String value = new String(buffer, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+    }
+}
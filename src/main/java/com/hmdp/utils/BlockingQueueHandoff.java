@@ -0,0 +1,75 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于ArrayBlockingQueue的订单队列，入队出队共用一把锁，每个订单一个VoucherOrder对象
+ */
+public class BlockingQueueHandoff implements OrderHandoff {
+
+    private final BlockingQueue<VoucherOrder> queue;
+
+    private final int capacity;
+
+    public BlockingQueueHandoff(int capacity) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.capacity = capacity;
+    }
+
+    @Override
+    public boolean offer(long orderId, long userId, long voucherId, long createMillis) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(orderId);
+        voucherOrder.setUserId(userId);
+        voucherOrder.setVoucherId(voucherId);
+        voucherOrder.setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(createMillis), ZoneId.systemDefault()));
+        return queue.offer(voucherOrder);
+    }
+
+    @Override
+    public void drain(List<VoucherOrder> batch, int batchSize, long waitMillis) throws InterruptedException {
+        batch.add(queue.take());
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (batch.size() < batchSize) {
+            if (queue.drainTo(batch, batchSize - batch.size()) > 0) {
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return;
+            }
+            VoucherOrder voucherOrder = queue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (voucherOrder == null) {
+                return;
+            }
+            batch.add(voucherOrder);
+        }
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public long headCreateMillis() {
+        VoucherOrder head = queue.peek();
+        if (head == null || head.getCreateTime() == null) {
+            return 0;
+        }
+        return head.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+/**
+ * 布隆过滤器的位数组，按预计数量和误判率算出位数和哈希次数
+ * 位的排列和Redis的SETBIT一致：第0位是第0个字节的最高位，整个数组可以直接作为Redis字符串读写
+ */
+public class BloomFilter {
+
+    // 位数
+    private final long bitSize;
+
+    // 每个元素的哈希次数
+    private final int hashCount;
+
+    private final byte[] bits;
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        this(optimalBitSize(expectedInsertions, fpp), optimalHashCount(expectedInsertions, optimalBitSize(expectedInsertions, fpp)));
+    }
+
+    public BloomFilter(long bitSize, int hashCount) {
+        // 凑整到字节，和Redis字符串的长度一致
+        this.bitSize = (bitSize + 7) / 8 * 8;
+        this.hashCount = hashCount;
+        this.bits = new byte[(int) (this.bitSize / 8)];
+    }
+
+    /**
+     * 用另一个同样大小的位数组，比如从Redis读出来的
+     */
+    public BloomFilter copyWith(byte[] bits) {
+        BloomFilter filter = new BloomFilter(bitSize, hashCount);
+        System.arraycopy(bits, 0, filter.bits, 0, filter.bits.length);
+        return filter;
+    }
+
+    /**
+     * 元素对应的位，写Redis时用
+     */
+    public long[] offsets(Object element) {
+        // 两个64位哈希组合出hashCount个位置
+        long[] hash = MurmurHash.hash128(element.toString());
+        long[] offsets = new long[hashCount];
+        for (int i = 0; i < hashCount; i++) {
+            offsets[i] = ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % bitSize;
+        }
+        return offsets;
+    }
+
+    public synchronized void put(Object element) {
+        for (long offset : offsets(element)) {
+            bits[(int) (offset >>> 3)] |= (byte) (0x80 >>> (offset & 7));
+        }
+    }
+
+    /**
+     * false表示一定不存在，true可能存在
+     */
+    public boolean mightContain(Object element) {
+        for (long offset : offsets(element)) {
+            if ((bits[(int) (offset >>> 3)] & (0x80 >>> (offset & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public byte[] toByteArray() {
+        return bits.clone();
+    }
+
+    public int byteSize() {
+        return bits.length;
+    }
+
+    static long optimalBitSize(long n, double p) {
+        return (long) Math.ceil(-n * Math.log(p) / (Math.log(2) * Math.log(2)));
+    }
+
+    static int optimalHashCount(long n, long m) {
+        return Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+}
@@ -1,125 +1,631 @@
 package com.hmdp.utils;
 
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
-import com.hmdp.dto.Result;
-import com.hmdp.entity.Shop;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.RedisTemplate;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.core.types.Expiration;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 /**
  * 缓存工具类
+ * 可以按key前缀开启进程内的一级缓存，热点数据命中时不访问Redis
+ * 通过set、setWithLogicalExpire、delete修改缓存时，用Redis发布订阅通知所有节点删除本地的key
+ * 缓存值通过CacheCodec编解码，用字节数组模板读写，空值存空字节数组
+ * 列表页要查多个id时用queryBatch，一次MGET加一次数据库查询，不要循环调用单个key的查询
  */
 @Slf4j
 @Component
-public class CacheClient {
+public class CacheClient implements MessageListener {
 
     private final StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private RedisTemplate<String, byte[]> bytesRedisTemplate;
+
+    // 所有的编解码器，读的时候按数据格式选
+    @Resource
+    private List<CacheCodec> cacheCodecs;
+
+    // 写缓存用的格式，切换后旧格式的缓存仍然能读，过期或更新后换成新格式
+    @Value("${hmdp.cache.codec:json}")
+    private String codecName;
+
+    private CacheCodec codec;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // key前缀 -> 本地缓存
+    private final Map<String, LocalCache> localCaches = new ConcurrentHashMap<>();
+
+    // key前缀 -> 布隆过滤器
+    private final Map<String, RedisBloomFilter> bloomFilters = new ConcurrentHashMap<>();
+
     public CacheClient(StringRedisTemplate redisTemplate, StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    private void init() {
+        codec = cacheCodecs.stream()
+                .filter(c -> c.name().equals(codecName))
+                .findFirst()
+                .orElseThrow(() -> new IllegalStateException("没有缓存编解码器：" + codecName));
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.CACHE_INVALIDATE_CHANNEL));
+    }
+
+    /**
+     * 给一个key前缀开启本地缓存
+     * @param maxBytes 本地缓存的容量，按缓存值序列化后的长度估算
+     * @param ttl 本地缓存的有效期，漏收了失效消息时最多旧这么久
+     */
+    public void enableLocalCache(String keyPrefix, long maxBytes, Long ttl, TimeUnit timeUnit) {
+        localCaches.put(keyPrefix, new LocalCache(maxBytes, ttl, timeUnit));
+    }
+
+    /**
+     * 给一个key前缀开启布隆过滤器，过滤器判断不存在的id直接返回null，不查Redis和数据库
+     */
+    public void enableBloomFilter(String keyPrefix, RedisBloomFilter bloomFilter) {
+        bloomFilters.put(keyPrefix, bloomFilter);
+    }
+
     // 存数据，有过期时间
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        bytesRedisTemplate.opsForValue().set(key, encode(value), time, timeUnit);
+        invalidate(key);
     }
 
     // 存数据，有逻辑过期时间
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
+        writeWithLogicalExpire(key, value, time, timeUnit);
+        invalidate(key);
+    }
+
+    // 删除数据，比如数据库更新后删除缓存
+    public void delete(String key) {
+        bytesRedisTemplate.delete(key);
+        invalidate(key);
+    }
+
+    // 缓存重建只是把数据库的数据放回来，其他节点本地的值没有变，不用通知
+    private void writeWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
         RedisData redisData = new RedisData();
         redisData.setData(value);
         redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
+        bytesRedisTemplate.opsForValue().set(key, codec.encode(redisData));
     }
 
     // 解决了缓存穿透的查询
     public <R, ID> R queryWithPassThrough(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        // 布隆过滤器判断不存在，不用查Redis和数据库，也不用缓存空值
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
-        // 从redis查询缓存
-        String dataJson = stringRedisTemplate.opsForValue().get(key);
-        // 判断是否存在
-        if (StrUtil.isNotBlank(dataJson)) {
-            // 存在，直接返回
-            R r = JSONUtil.toBean(dataJson, type);
-            return r;
+        // 先查本地缓存
+        LocalCache localCache = localCaches.get(keyPrefix);
+        long version = 0;
+        if (localCache != null) {
+            LocalCache.Entry entry = localCache.get(key);
+            if (entry != null) {
+                return type.cast(entry.getValue());
+            }
+            version = localCache.version();
         }
-        // 如果不是null前面还没返回，说明获取到的是缓存的空字符串
-        if (dataJson != null) {
-            return null;
+        // 从redis查询缓存，缓存的空值也直接返回
+        byte[] cached = bytesRedisTemplate.opsForValue().get(key);
+        if (cached != null) {
+            return decodeAndPutLocal(localCache, key, cached, type, version);
         }
         // 不存在，根据id查询数据库
         R r = dbFallback.apply(id);
         // 判断是否存在
         if (r == null) {
             // 不存在，redis存空值，返回错误
-            this.set(key, "", time, timeUnit);
+            bytesRedisTemplate.opsForValue().set(key, EMPTY, time, timeUnit);
+            putLocal(localCache, key, null, null, EMPTY, version);
             return null;
         }
         // 存在，写入redis
-        this.set(key, JSONUtil.toJsonStr(r), time, timeUnit);
+        byte[] bytes = codec.encode(r);
+        bytesRedisTemplate.opsForValue().set(key, bytes, time, timeUnit);
+        putLocal(localCache, key, r, null, bytes, version);
         // 返回
         return r;
     }
 
+    // 查询整个列表的缓存，比如商铺类型，没有时查数据库，列表为空时不缓存
+    public <R> List<R> queryList(String key, Class<R> elementType, Supplier<List<R>> dbFallback, Long time, TimeUnit timeUnit) {
+        byte[] cached = bytesRedisTemplate.opsForValue().get(key);
+        if (cached != null && cached.length > 0) {
+            return codecOf(cached).decodeList(cached, elementType);
+        }
+        List<R> list = dbFallback.get();
+        if (list == null || list.isEmpty()) {
+            return list;
+        }
+        bytesRedisTemplate.opsForValue().set(key, codec.encode(list), time, timeUnit);
+        return list;
+    }
+
     private static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
 
+    // 互斥重建的锁的有效期(秒)，也是重建线程等锁的最长时间
+    private static final long REBUILD_LOCK_TTL = 10;
+
+    // 本节点其他线程等待合并重建结果的最长时间(秒)，要比重建线程等锁的时间长，它等到最后拿到锁时还要查数据库
+    private static final long REBUILD_WAIT_TIMEOUT = 2 * REBUILD_LOCK_TTL;
+
+    // 合并本节点对同一个key的并发重建
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    // 本节点正在逻辑过期重建的key
+    private final Set<String> rebuildingKeys = ConcurrentHashMap.newKeySet();
+
     // 用逻辑过期解决了缓存击穿的查询
     public <R, ID> R queryWithLogicalExpire(String keyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback, Long time, TimeUnit timeUnit) {
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
         String key = keyPrefix + id;
+        // 先查本地缓存，逻辑过期了要去Redis看是否已经重建
+        LocalCache localCache = localCaches.get(keyPrefix);
+        long version = 0;
+        if (localCache != null) {
+            LocalCache.Entry entry = localCache.get(key);
+            if (entry != null && !entry.isLogicallyExpired()) {
+                return type.cast(entry.getValue());
+            }
+            version = localCache.version();
+        }
         // 从redis查询商铺缓存
-        String dataJson = stringRedisTemplate.opsForValue().get(key);
+        byte[] cached = bytesRedisTemplate.opsForValue().get(key);
         // 判断是否存在
-        if (StrUtil.isBlank(dataJson)) {
+        if (cached == null || cached.length == 0) {
             return null;
         }
-        // 存在
-        RedisData data = JSONUtil.toBean(dataJson, RedisData.class);
-        JSONObject obj = (JSONObject) data.getData();
-        R r = JSONUtil.toBean(obj, type);
-        if (data.getExpireTime().isAfter(LocalDateTime.now())) {
+        // 存在，只解码一次
+        RedisData data = codecOf(cached).decodeWithLogicalExpire(cached, type);
+        LocalDateTime expireTime = data.getExpireTime();
+        R r = type.cast(data.getData());
+        if (expireTime.isAfter(LocalDateTime.now())) {
             // 未过期直接返回
+            putLocal(localCache, key, r, expireTime, cached, version);
             return r;
         } else {
-            // 数据过期，尝试获取锁，开启新线程重建缓存，返回过期数据
+            // 数据过期，本节点已经有线程在重建时直接返回过期数据，不用再去抢锁
+            if (!rebuildingKeys.add(key)) {
+                return r;
+            }
+            // 尝试获取锁，开启新线程重建缓存，返回过期数据
             String lockKey = key + ":rebuild";
+            boolean isLock = false;
+            boolean submitted = false;
             try {
-                boolean isLock = tryLock(lockKey);
+                isLock = tryLock(lockKey);
                 if (isLock) {
-                    // double check，防止重复重建
-                    data = JSONUtil.toBean(dataJson, RedisData.class);
-                    r = JSONUtil.toBean((JSONObject) data.getData(), type);
-                    if (data.getExpireTime().isAfter(LocalDateTime.now())) {
-                        return r;
+                    // double check，拿到锁之前可能已经有线程重建完了，重新查一次redis
+                    byte[] latestBytes = bytesRedisTemplate.opsForValue().get(key);
+                    if (latestBytes != null && latestBytes.length > 0 && !Arrays.equals(latestBytes, cached)) {
+                        RedisData latest = codecOf(latestBytes).decodeWithLogicalExpire(latestBytes, type);
+                        if (latest.getExpireTime().isAfter(LocalDateTime.now())) {
+                            return type.cast(latest.getData());
+                        }
                     }
 
-                    // 开启一个新线程重建缓存
+                    // 开启一个新线程重建缓存，重建完再释放锁
                     CACHE_REBUILD_EXECUTOR.submit(() -> {
-                        R r1 = dbFallback.apply(id);
-                        this.setWithLogicalExpire(key, r1, time, timeUnit);
+                        try {
+                            R r1 = dbFallback.apply(id);
+                            this.writeWithLogicalExpire(key, r1, time, timeUnit);
+                        } catch (Exception e) {
+                            log.error("重建缓存{}失败", key, e);
+                        } finally {
+                            unlock(lockKey);
+                            rebuildingKeys.remove(key);
+                        }
                     });
-                    return r;
+                    submitted = true;
                 }
             } catch (Exception e) {
                 throw new RuntimeException(e);
             } finally {
-                unlock(lockKey);
+                if (!submitted) {
+                    // 只释放自己拿到的锁
+                    if (isLock) {
+                        unlock(lockKey);
+                    }
+                    rebuildingKeys.remove(key);
+                }
             }
             return r;
         }
     }
 
+    /**
+     * 用互斥锁解决缓存击穿的查询，缓存没有时只有一个线程查数据库
+     * 同一个节点的并发请求先合并成一次，只有合并后的那个线程去抢分布式锁，其他线程等它的结果
+     * @param lockKeyPrefix 重建锁的key前缀，和没有合并前用的锁一致，比如LOCK_SHOP_KEY
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix, String lockKeyPrefix, ID id, Class<R> type, Function<ID, R> dbFallback,
+                                    Long time, TimeUnit timeUnit) {
+        if (!mightExist(keyPrefix, id)) {
+            return null;
+        }
+        String key = keyPrefix + id;
+        LocalCache localCache = localCaches.get(keyPrefix);
+        if (localCache != null) {
+            LocalCache.Entry entry = localCache.get(key);
+            if (entry != null) {
+                return type.cast(entry.getValue());
+            }
+        }
+        long version = localCache == null ? 0 : localCache.version();
+        byte[] cached = bytesRedisTemplate.opsForValue().get(key);
+        if (cached != null) {
+            return decodeAndPutLocal(localCache, key, cached, type, version);
+        }
+        // 缓存没有，同一个key的并发请求只重建一次
+        String lockKey = lockKeyPrefix + id;
+        return singleFlight.execute(key, () -> rebuildWithMutex(key, lockKey, id, type, dbFallback, time, timeUnit, localCache, version),
+                REBUILD_WAIT_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private <R, ID> R rebuildWithMutex(String key, String lockKey, ID id, Class<R> type, Function<ID, R> dbFallback, Long time,
+                                       TimeUnit timeUnit, LocalCache localCache, long version) {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(REBUILD_LOCK_TTL);
+        while (true) {
+            if (tryLock(lockKey, REBUILD_LOCK_TTL)) {
+                try {
+                    // double check，拿到锁之前其他节点可能已经重建完了
+                    byte[] cached = bytesRedisTemplate.opsForValue().get(key);
+                    if (cached != null) {
+                        return decodeAndPutLocal(localCache, key, cached, type, version);
+                    }
+                    R r = dbFallback.apply(id);
+                    if (r == null) {
+                        bytesRedisTemplate.opsForValue().set(key, EMPTY, RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        putLocal(localCache, key, null, null, EMPTY, version);
+                        return null;
+                    }
+                    byte[] bytes = codec.encode(r);
+                    bytesRedisTemplate.opsForValue().set(key, bytes, time, timeUnit);
+                    putLocal(localCache, key, r, null, bytes, version);
+                    return r;
+                } finally {
+                    unlock(lockKey);
+                }
+            }
+            // 其他节点在重建，等一会再查，本节点只有这一个线程在等
+            if (System.currentTimeMillis() > deadline) {
+                throw new RuntimeException("等待缓存重建超时：" + key);
+            }
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            byte[] cached = bytesRedisTemplate.opsForValue().get(key);
+            if (cached != null) {
+                return decodeAndPutLocal(localCache, key, cached, type, version);
+            }
+        }
+    }
+
+    /**
+     * 批量查询，解决缓存穿透，语义和queryWithPassThrough一样
+     * 一次MGET查Redis，没有缓存的id一起交给dbFallback查一次数据库，查到的和不存在的空值用pipeline写回
+     * @param dbFallback 按id批量查数据库，比如listByIds后按id转成map，不存在的id不放进map
+     * @return id -> 数据，按ids的顺序，不存在的id不在结果里
+     */
+    public <R, ID> Map<ID, R> queryBatch(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                         Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit timeUnit) {
+        LocalCache localCache = localCaches.get(keyPrefix);
+        long version = localCache == null ? 0 : localCache.version();
+        Map<ID, R> found = new HashMap<>();
+        // 先过布隆过滤器和本地缓存，剩下的去Redis查
+        List<ID> remoteIds = new ArrayList<>();
+        Set<ID> distinctIds = new LinkedHashSet<>(ids);
+        for (ID id : distinctIds) {
+            if (!mightExist(keyPrefix, id)) {
+                continue;
+            }
+            LocalCache.Entry entry = localCache == null ? null : localCache.get(keyPrefix + id);
+            if (entry == null) {
+                remoteIds.add(id);
+            } else if (entry.getValue() != null) {
+                found.put(id, type.cast(entry.getValue()));
+            }
+        }
+        List<byte[]> values = multiGet(keyPrefix, remoteIds);
+        List<ID> missIds = new ArrayList<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            byte[] cached = values.get(i);
+            if (cached == null) {
+                missIds.add(id);
+                continue;
+            }
+            R r = decodeAndPutLocal(localCache, keyPrefix + id, cached, type, version);
+            if (r != null) {
+                found.put(id, r);
+            }
+        }
+        if (!missIds.isEmpty()) {
+            // 缓存没有的一次查完，不存在的id缓存空值
+            Map<ID, R> loaded = dbFallback.apply(missIds);
+            Map<String, byte[]> writes = new LinkedHashMap<>();
+            for (ID id : missIds) {
+                R r = loaded == null ? null : loaded.get(id);
+                byte[] bytes = encode(r);
+                writes.put(keyPrefix + id, bytes);
+                putLocal(localCache, keyPrefix + id, r, null, bytes, version);
+                if (r != null) {
+                    found.put(id, r);
+                }
+            }
+            pipelineSet(writes, Expiration.from(time, timeUnit));
+        }
+        return ordered(distinctIds, found);
+    }
+
+    /**
+     * 批量查询，用逻辑过期解决缓存击穿，语义和queryWithLogicalExpire一样
+     * 缓存里没有的id不查数据库，逻辑过期的先返回旧数据，抢到锁的key合在一起开一个线程重建，只查一次数据库
+     */
+    public <R, ID> Map<ID, R> queryBatchWithLogicalExpire(String keyPrefix, Collection<ID> ids, Class<R> type,
+                                                          Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit timeUnit) {
+        LocalCache localCache = localCaches.get(keyPrefix);
+        long version = localCache == null ? 0 : localCache.version();
+        Map<ID, R> found = new HashMap<>();
+        List<ID> remoteIds = new ArrayList<>();
+        Set<ID> distinctIds = new LinkedHashSet<>(ids);
+        for (ID id : distinctIds) {
+            if (!mightExist(keyPrefix, id)) {
+                continue;
+            }
+            // 本地的逻辑过期了要去Redis看是否已经重建
+            LocalCache.Entry entry = localCache == null ? null : localCache.get(keyPrefix + id);
+            if (entry == null || entry.isLogicallyExpired()) {
+                remoteIds.add(id);
+            } else if (entry.getValue() != null) {
+                found.put(id, type.cast(entry.getValue()));
+            }
+        }
+        List<byte[]> values = multiGet(keyPrefix, remoteIds);
+        // 逻辑过期的id和查到的原始数据，重建前double check用
+        Map<ID, byte[]> expired = new LinkedHashMap<>();
+        for (int i = 0; i < remoteIds.size(); i++) {
+            ID id = remoteIds.get(i);
+            String key = keyPrefix + id;
+            byte[] cached = values.get(i);
+            if (cached == null || cached.length == 0) {
+                continue;
+            }
+            RedisData data = codecOf(cached).decodeWithLogicalExpire(cached, type);
+            R r = type.cast(data.getData());
+            if (data.getExpireTime().isAfter(LocalDateTime.now())) {
+                putLocal(localCache, key, r, data.getExpireTime(), cached, version);
+            } else if (rebuildingKeys.add(key)) {
+                // 本节点已经有线程在重建的key不用再去抢锁
+                expired.put(id, cached);
+            }
+            if (r != null) {
+                found.put(id, r);
+            }
+        }
+        if (!expired.isEmpty()) {
+            rebuildBatch(keyPrefix, expired, type, dbFallback, time, timeUnit);
+        }
+        return ordered(distinctIds, found);
+    }
+
+    // 逐个抢锁，拿到锁的key一起重建，重建完再释放锁
+    private <R, ID> void rebuildBatch(String keyPrefix, Map<ID, byte[]> expired, Class<R> type,
+                                      Function<Collection<ID>, Map<ID, R>> dbFallback, Long time, TimeUnit timeUnit) {
+        List<ID> lockedIds = new ArrayList<>();
+        boolean submitted = false;
+        try {
+            for (ID id : expired.keySet()) {
+                if (tryLock(keyPrefix + id + ":rebuild")) {
+                    lockedIds.add(id);
+                }
+            }
+            // double check，拿到锁之前可能已经有线程重建完了，重新查一次redis
+            List<byte[]> latest = multiGet(keyPrefix, lockedIds);
+            List<ID> rebuildIds = new ArrayList<>();
+            for (int i = 0; i < lockedIds.size(); i++) {
+                ID id = lockedIds.get(i);
+                byte[] latestBytes = latest.get(i);
+                if (latestBytes != null && latestBytes.length > 0 && !Arrays.equals(latestBytes, expired.get(id))
+                        && codecOf(latestBytes).decodeWithLogicalExpire(latestBytes, type).getExpireTime().isAfter(LocalDateTime.now())) {
+                    continue;
+                }
+                rebuildIds.add(id);
+            }
+            if (!rebuildIds.isEmpty()) {
+                CACHE_REBUILD_EXECUTOR.submit(() -> {
+                    try {
+                        Map<ID, R> loaded = dbFallback.apply(rebuildIds);
+                        Map<String, byte[]> writes = new LinkedHashMap<>();
+                        LocalDateTime expireTime = LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time));
+                        for (ID id : rebuildIds) {
+                            RedisData redisData = new RedisData();
+                            redisData.setData(loaded == null ? null : loaded.get(id));
+                            redisData.setExpireTime(expireTime);
+                            writes.put(keyPrefix + id, codec.encode(redisData));
+                        }
+                        pipelineSet(writes, Expiration.persistent());
+                    } catch (Exception e) {
+                        log.error("批量重建缓存{}{}失败", keyPrefix, rebuildIds, e);
+                    } finally {
+                        releaseRebuild(keyPrefix, expired.keySet(), lockedIds);
+                    }
+                });
+                submitted = true;
+            }
+        } finally {
+            if (!submitted) {
+                releaseRebuild(keyPrefix, expired.keySet(), lockedIds);
+            }
+        }
+    }
+
+    private <ID> void releaseRebuild(String keyPrefix, Collection<ID> expiredIds, List<ID> lockedIds) {
+        for (ID id : lockedIds) {
+            unlock(keyPrefix + id + ":rebuild");
+        }
+        for (ID id : expiredIds) {
+            rebuildingKeys.remove(keyPrefix + id);
+        }
+    }
+
+    // 一次MGET，返回值和ids一一对应，没有的是null
+    private <ID> List<byte[]> multiGet(String keyPrefix, List<ID> ids) {
+        if (ids.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> keys = ids.stream().map(id -> keyPrefix + id).collect(Collectors.toList());
+        List<byte[]> values = bytesRedisTemplate.opsForValue().multiGet(keys);
+        if (values == null) {
+            values = new ArrayList<>();
+            for (int i = 0; i < keys.size(); i++) {
+                values.add(null);
+            }
+        }
+        return values;
+    }
+
+    // 一个pipeline写回，空值用空值的有效期
+    private void pipelineSet(Map<String, byte[]> writes, Expiration expiration) {
+        Expiration nullExpiration = Expiration.from(RedisConstants.CACHE_NULL_TTL, TimeUnit.MINUTES);
+        bytesRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (Map.Entry<String, byte[]> write : writes.entrySet()) {
+                byte[] value = write.getValue();
+                connection.stringCommands().set(write.getKey().getBytes(StandardCharsets.UTF_8), value,
+                        value.length == 0 ? nullExpiration : expiration, RedisStringCommands.SetOption.upsert());
+            }
+            return null;
+        });
+    }
+
+    private static <R, ID> Map<ID, R> ordered(Set<ID> ids, Map<ID, R> found) {
+        Map<ID, R> result = new LinkedHashMap<>();
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    private <R> R decodeAndPutLocal(LocalCache localCache, String key, byte[] cached, Class<R> type, long version) {
+        R r = decode(cached, type);
+        putLocal(localCache, key, r, null, cached, version);
+        return r;
+    }
+
+    // 空字节数组是缓存的空值
+    private <R> R decode(byte[] bytes, Class<R> type) {
+        return bytes.length == 0 ? null : codecOf(bytes).decode(bytes, type);
+    }
+
+    private byte[] encode(Object value) {
+        return value == null ? EMPTY : codec.encode(value);
+    }
+
+    // 按数据开头的标记选择编解码器，切换格式期间新旧格式的数据都能读
+    private CacheCodec codecOf(byte[] bytes) {
+        if (codec.canDecode(bytes)) {
+            return codec;
+        }
+        for (CacheCodec cacheCodec : cacheCodecs) {
+            if (cacheCodec.canDecode(bytes)) {
+                return cacheCodec;
+            }
+        }
+        throw new IllegalStateException("无法识别的缓存数据格式");
+    }
+
+    private boolean mightExist(String keyPrefix, Object id) {
+        RedisBloomFilter bloomFilter = bloomFilters.get(keyPrefix);
+        return bloomFilter == null || bloomFilter.mightContain(id);
+    }
+
+    private static void putLocal(LocalCache localCache, String key, Object value, LocalDateTime expireTime, byte[] bytes, long version) {
+        if (localCache != null) {
+            localCache.put(key, value, expireTime, bytes.length, version);
+        }
+    }
+
+    // 删除本地的key，并通知其他节点删除
+    private void invalidate(String key) {
+        LocalCache localCache = localCacheOf(key);
+        if (localCache == null) {
+            return;
+        }
+        localCache.invalidate(key);
+        stringRedisTemplate.convertAndSend(RedisConstants.CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private LocalCache localCacheOf(String key) {
+        for (Map.Entry<String, LocalCache> entry : localCaches.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        LocalCache localCache = localCacheOf(key);
+        if (localCache != null) {
+            localCache.invalidate(key);
+        }
+    }
+
     private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", 100, TimeUnit.SECONDS);
+        return tryLock(key, 100);
+    }
+
+    private boolean tryLock(String key, long ttlSeconds) {
+        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", ttlSeconds, TimeUnit.SECONDS);
         return BooleanUtil.isTrue(flag);
     }
 
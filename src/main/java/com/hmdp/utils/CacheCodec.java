@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import java.util.List;
+
+/**
+ * 缓存值的编解码，CacheClient写缓存时用hmdp.cache.codec配置的实现，读缓存时按数据开头的标记选择能解码的实现
+ * 切换格式时旧格式的数据仍然能读，要新增格式就实现这个接口并注册成bean
+ * 空值由CacheClient存成空字节数组，不经过编解码
+ */
+public interface CacheCodec {
+
+    /**
+     * 配置里用的名字
+     */
+    String name();
+
+    /**
+     * 这段数据是不是这个格式
+     */
+    boolean canDecode(byte[] bytes);
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    <T> List<T> decodeList(byte[] bytes, Class<T> elementType);
+
+    /**
+     * 解码逻辑过期的数据，data转成dataType
+     */
+    RedisData decodeWithLogicalExpire(byte[] bytes, Class<?> dataType);
+}
@@ -0,0 +1,54 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.List;
+
+/**
+ * JSON格式，原来的缓存都是这个格式
+ */
+@Component
+public class JsonCacheCodec implements CacheCodec {
+
+    @Override
+    public String name() {
+        return "json";
+    }
+
+    @Override
+    public boolean canDecode(byte[] bytes) {
+        byte first = bytes[0];
+        return first == '{' || first == '[' || first == '"' || first == '-' || (first >= '0' && first <= '9')
+                || first == 't' || first == 'f' || first == 'n';
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return JSONUtil.toJsonStr(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        return JSONUtil.toBean(new String(bytes, StandardCharsets.UTF_8), type);
+    }
+
+    @Override
+    public <T> List<T> decodeList(byte[] bytes, Class<T> elementType) {
+        return JSONUtil.toList(new String(bytes, StandardCharsets.UTF_8), elementType);
+    }
+
+    @Override
+    public RedisData decodeWithLogicalExpire(byte[] bytes, Class<?> dataType) {
+        // 只解析一次，过期时间和数据都从解析出的JSONObject里取
+        JSONObject json = JSONUtil.parseObj(new String(bytes, StandardCharsets.UTF_8));
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(json.get("expireTime", LocalDateTime.class));
+        JSONObject data = json.getJSONObject("data");
+        redisData.setData(data == null ? null : data.toBean(dataType));
+        return redisData;
+    }
+}
@@ -0,0 +1,187 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的一级缓存，CacheClient给每个key前缀建一个，容量和有效期各自配置
+ * 容量按缓存值的字节数估算，超出后按CLOCK算法淘汰：按放入的顺序检查，最近访问过的给一次机会放回队尾，近似LRU
+ * 读不加锁，命中时只改一个访问标记；只有超出容量淘汰时写线程之间互斥
+ * 缓存的是反序列化好的对象，命中时调用方拿到的是同一个对象，不能修改
+ */
+public class LocalCache {
+
+    // 每个key除了值以外的开销估算(字节)
+    private static final long ENTRY_OVERHEAD = 64;
+
+    private final long maxBytes;
+
+    private final long ttlMillis;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>(256);
+
+    // 淘汰的检查顺序，替换和删除后旧的节点还留在队列里，检查到时跳过
+    private final Queue<Entry> clock = new ConcurrentLinkedQueue<>();
+
+    // 队列里的节点数，包括已经失效的
+    private final AtomicInteger clockSize = new AtomicInteger();
+
+    private final AtomicLong bytes = new AtomicLong();
+
+    // 淘汰时写线程之间互斥，读不用
+    private final Object evictionLock = new Object();
+
+    // 失效的次数，查Redis前后变了说明这期间有写入，查到的可能是旧值，不放进本地
+    private final AtomicLong version = new AtomicLong();
+
+    public static class Entry {
+        private final String key;
+        // 缓存的值，null表示数据不存在
+        private final Object value;
+        // 逻辑过期时间，没有逻辑过期的为null
+        private final LocalDateTime expireTime;
+        private final long weight;
+        // 本地的过期时间戳
+        private final long deadline;
+        // 上次检查之后是否被访问过
+        private volatile boolean referenced;
+
+        Entry(String key, Object value, LocalDateTime expireTime, long weight, long deadline) {
+            this.key = key;
+            this.value = value;
+            this.expireTime = expireTime;
+            this.weight = weight;
+            this.deadline = deadline;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public boolean isLogicallyExpired() {
+            return expireTime != null && !expireTime.isAfter(LocalDateTime.now());
+        }
+    }
+
+    public LocalCache(long maxBytes, long ttl, TimeUnit timeUnit) {
+        this.maxBytes = maxBytes;
+        this.ttlMillis = timeUnit.toMillis(ttl);
+    }
+
+    /**
+     * 查本地缓存，没有或者本地过期了返回null
+     */
+    public Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.deadline < System.currentTimeMillis()) {
+            remove(entry);
+            return null;
+        }
+        if (!entry.referenced) {
+            entry.referenced = true;
+        }
+        return entry;
+    }
+
+    /**
+     * 查Redis之前先取版本号，放回本地时带上
+     */
+    public long version() {
+        return version.get();
+    }
+
+    /**
+     * 放进本地缓存，查Redis期间有失效消息时放弃
+     * @param size 缓存值序列化后的字节数，用来估算占用的内存
+     */
+    public void put(String key, Object value, LocalDateTime expireTime, int size, long version) {
+        if (version != this.version.get()) {
+            return;
+        }
+        long weight = ENTRY_OVERHEAD + key.length() * 2L + size;
+        if (weight > maxBytes) {
+            return;
+        }
+        Entry entry = new Entry(key, value, expireTime, weight, System.currentTimeMillis() + ttlMillis);
+        Entry old = entries.put(key, entry);
+        bytes.addAndGet(old == null ? weight : weight - old.weight);
+        clock.offer(entry);
+        clockSize.incrementAndGet();
+        // 放进去之后才收到的失效消息已经删过这个key，放进去之前收到的要在这里删掉
+        if (version != this.version.get()) {
+            remove(entry);
+        }
+        if (bytes.get() > maxBytes || clockSize.get() > entries.size() * 2 + 1024) {
+            evict();
+        }
+    }
+
+    /**
+     * 数据改了，删除本地的key
+     */
+    public void invalidate(String key) {
+        version.incrementAndGet();
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            remove(entry);
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long bytes() {
+        return bytes.get();
+    }
+
+    private void evict() {
+        synchronized (evictionLock) {
+            // 超出容量，从队头开始检查，访问过的清掉标记放回队尾，没访问过的淘汰
+            while (bytes.get() > maxBytes) {
+                Entry entry = clock.poll();
+                if (entry == null) {
+                    break;
+                }
+                clockSize.decrementAndGet();
+                if (entries.get(entry.key) != entry) {
+                    // 已经被替换或删除
+                    continue;
+                }
+                if (entry.referenced) {
+                    entry.referenced = false;
+                    clock.offer(entry);
+                    clockSize.incrementAndGet();
+                    continue;
+                }
+                remove(entry);
+            }
+            // 同一个key反复替换时队列里会积累旧节点，多了就清理一遍
+            if (clockSize.get() > entries.size() * 2 + 1024) {
+                Iterator<Entry> iterator = clock.iterator();
+                while (iterator.hasNext()) {
+                    Entry entry = iterator.next();
+                    if (entries.get(entry.key) != entry) {
+                        iterator.remove();
+                        clockSize.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private void remove(Entry entry) {
+        if (entries.remove(entry.key, entry)) {
+            bytes.addAndGet(-entry.weight);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.DeadLetterDTO;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 死信订单，写库最终失败的异步订单存到Redis的hash里，同时撤销秒杀脚本里扣的库存和下单记录
+ * 修复问题后可以重放，重新占用库存后再写库
+ */
+@Slf4j
+@Component
+public class OrderDeadLetterQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    // 秒杀库存分片数，和秒杀脚本一致
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    // 下单记录是否用位图编码，和秒杀脚本一致
+    @Value("${hmdp.seckill.buyer-bitmap:false}")
+    private boolean buyerBitmap;
+
+    /**
+     * 订单进入死信并补偿Redis，同一个订单只补偿一次
+     * @param attempts 已经重试的次数
+     * @param error 最后一次的异常，没有异常时为null
+     */
+    public void add(VoucherOrder voucherOrder, OrderFailReason reason, int attempts, Throwable error) {
+        DeadLetterDTO deadLetter = new DeadLetterDTO();
+        deadLetter.setOrderId(voucherOrder.getId());
+        deadLetter.setUserId(voucherOrder.getUserId());
+        deadLetter.setVoucherId(voucherOrder.getVoucherId());
+        deadLetter.setReason(reason.name());
+        deadLetter.setAttempts(attempts);
+        deadLetter.setError(error == null ? null : error.toString());
+        deadLetter.setDeadAt(System.currentTimeMillis());
+        Boolean added = stringRedisTemplate.opsForHash().putIfAbsent(RedisConstants.SECKILL_DEAD_LETTER_KEY,
+                voucherOrder.getId().toString(), JSONUtil.toJsonStr(deadLetter));
+        if (!Boolean.TRUE.equals(added)) {
+            return;
+        }
+        stringRedisTemplate.opsForHash().increment(RedisConstants.SECKILL_DEAD_LETTER_COUNT_KEY, reason.name(), 1);
+        log.warn("订单{}进入死信，原因：{}，重试{}次", voucherOrder.getId(), reason, attempts);
+
+        // 重复下单时用户确实买过，只补库存；数据库库存不足时只撤销下单记录，库存不补回，否则下一个用户还会在数据库失败
+        // 其他情况连下单记录一起撤销，用户可以重新抢
+        int homeShard = SeckillKeys.homeShard(voucherOrder.getUserId(), stockShards);
+        Long rollback = redisScripts.execute("seckill-rollback", Long.class,
+                Arrays.asList(SeckillKeys.stockKey(voucherOrder.getVoucherId(), homeShard, stockShards),
+                        SeckillKeys.buyerKey(voucherOrder.getVoucherId(), voucherOrder.getUserId(), stockShards, buyerBitmap)),
+                voucherOrder.getUserId().toString(),
+                buyerBitmap ? String.valueOf(SeckillKeys.offset(voucherOrder.getUserId(), stockShards)) : "",
+                reason == OrderFailReason.DUPLICATE ? "0" : "1",
+                reason == OrderFailReason.SOLD_OUT ? "0" : "1");
+        if (reason == OrderFailReason.SOLD_OUT) {
+            // Redis里剩下的库存数据库已经没有了，本地先标记售罄，Redis的库存由对账修正
+            soldOutRegistry.markSoldOut(voucherOrder.getVoucherId());
+        } else if (rollback != null && rollback == 1) {
+            soldOutRegistry.replenished(voucherOrder.getVoucherId());
+        }
+    }
+
+    public DeadLetterDTO get(Long orderId) {
+        Object json = stringRedisTemplate.opsForHash().get(RedisConstants.SECKILL_DEAD_LETTER_KEY, orderId.toString());
+        return json == null ? null : JSONUtil.toBean((String) json, DeadLetterDTO.class);
+    }
+
+    /**
+     * 重放前移出死信，返回false说明已经被其他请求移出了
+     */
+    public boolean remove(Long orderId) {
+        Long removed = stringRedisTemplate.opsForHash().delete(RedisConstants.SECKILL_DEAD_LETTER_KEY, orderId.toString());
+        return removed != null && removed > 0;
+    }
+
+    /**
+     * 重放没能重新占用库存时放回死信，补偿已经做过了，不再补偿和计数
+     */
+    public void restore(DeadLetterDTO deadLetter) {
+        stringRedisTemplate.opsForHash().put(RedisConstants.SECKILL_DEAD_LETTER_KEY,
+                deadLetter.getOrderId().toString(), JSONUtil.toJsonStr(deadLetter));
+    }
+
+    /**
+     * 重新占用库存和下单记录
+     * @return 0：成功；1：库存不足；2：用户已经重新下过单
+     */
+    public int reserve(VoucherOrder voucherOrder) {
+        int homeShard = SeckillKeys.homeShard(voucherOrder.getUserId(), stockShards);
+        int result = reserve(voucherOrder, homeShard);
+        if (result == 1 && seckillStockShards.borrow(voucherOrder.getVoucherId(), homeShard) > 0) {
+            // 主分片没有库存，从其他分片调过来再试一次
+            result = reserve(voucherOrder, homeShard);
+        }
+        return result;
+    }
+
+    // 下单记录和主分片的库存在同一个slot
+    private int reserve(VoucherOrder voucherOrder, int homeShard) {
+        Long result = redisScripts.execute("seckill-reserve", Long.class,
+                Arrays.asList(SeckillKeys.buyerKey(voucherOrder.getVoucherId(), voucherOrder.getUserId(), stockShards, buyerBitmap),
+                        SeckillKeys.stockKey(voucherOrder.getVoucherId(), homeShard, stockShards),
+                        SeckillKeys.chunksKey(voucherOrder.getVoucherId(), homeShard, stockShards)),
+                voucherOrder.getUserId().toString(),
+                buyerBitmap ? String.valueOf(SeckillKeys.offset(voucherOrder.getUserId(), stockShards)) : "");
+        return result == null ? 1 : result.intValue();
+    }
+
+    /**
+     * 最多列出count条死信
+     */
+    public List<DeadLetterDTO> list(int count) {
+        List<DeadLetterDTO> list = new ArrayList<>();
+        try (Cursor<Map.Entry<Object, Object>> cursor = stringRedisTemplate.opsForHash()
+                .scan(RedisConstants.SECKILL_DEAD_LETTER_KEY, ScanOptions.scanOptions().count(count).build())) {
+            while (cursor.hasNext() && list.size() < count) {
+                list.add(JSONUtil.toBean((String) cursor.next().getValue(), DeadLetterDTO.class));
+            }
+        } catch (IOException e) {
+            log.error("关闭死信游标失败", e);
+        }
+        return list;
+    }
+
+    /**
+     * 各个原因进入死信的订单数，所有节点累计
+     */
+    public Map<String, Long> counts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        Map<Object, Object> entries = stringRedisTemplate.opsForHash().entries(RedisConstants.SECKILL_DEAD_LETTER_COUNT_KEY);
+        for (OrderFailReason reason : OrderFailReason.values()) {
+            Object count = entries.get(reason.name());
+            counts.put(reason.name(), count == null ? 0L : Long.parseLong((String) count));
+        }
+        return counts;
+    }
+}
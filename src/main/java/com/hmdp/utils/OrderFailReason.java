@@ -0,0 +1,13 @@
+package com.hmdp.utils;
+
+/**
+ * 异步订单写库失败的原因
+ */
+public enum OrderFailReason {
+    // 数据库里已经有这个用户的订单
+    DUPLICATE,
+    // 数据库库存不足，和Redis库存不一致
+    SOLD_OUT,
+    // 数据库异常等，重试次数用完了还没成功
+    ERROR
+}
@@ -0,0 +1,53 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * 下单请求线程把订单交给分区消费线程的队列，多个生产者、一个消费者
+ */
+public interface OrderHandoff {
+
+    /**
+     * 放入一个订单，由下单请求线程调用
+     * @param createMillis 受理的时间戳(毫秒)
+     * @return 队列满了返回false
+     */
+    boolean offer(long orderId, long userId, long voucherId, long createMillis);
+
+    /**
+     * 放入一个订单并写进预写日志，日志里的顺序要和队列里的顺序一致，消费线程才能按顺序推进检查点
+     * 默认加锁保证顺序，无锁的队列用自己申请到的序号作为日志里的位置
+     * @return 记录在日志里的序号，队列满了返回-1
+     */
+    default long offer(long orderId, long userId, long voucherId, long createMillis, OrderJournal journal) throws IOException {
+        synchronized (this) {
+            if (size() >= capacity()) {
+                return -1;
+            }
+            long seq = journal.append(orderId, userId, voucherId);
+            offer(orderId, userId, voucherId, createMillis);
+            return seq;
+        }
+    }
+
+    /**
+     * 取出一批订单，没有订单时阻塞，拿到第一个后最多攒batchSize个或者最多再等waitMillis毫秒，由消费线程调用
+     * 写预写日志失败被拒绝的订单放null占位，第i个元素对应日志里这批的第i条
+     */
+    void drain(List<VoucherOrder> batch, int batchSize, long waitMillis) throws InterruptedException;
+
+    /**
+     * 队列里的订单数
+     */
+    int size();
+
+    int capacity();
+
+    /**
+     * 队头订单受理的时间戳(毫秒)，队列为空时返回0
+     */
+    long headCreateMillis();
+}
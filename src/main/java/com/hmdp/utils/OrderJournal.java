@@ -0,0 +1,368 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订单预写日志，queue模式下秒杀脚本受理的订单先追加到日志再入队，JVM崩溃后重启时重放还没写库的订单
+ * 日志按固定大小分段，每段用内存映射文件，追加只是写内存，JVM崩溃时数据已经在操作系统的页缓存里；
+ * 刷盘线程定时force，多次追加合并成一次fsync，防止机器宕机丢失
+ * 记录按序号写在固定的位置，无锁队列用申请到的序号直接写，多个线程写不同的位置不用加锁
+ * 消费线程处理完一批后推进检查点，检查点之前的段整个删除
+ */
+@Slf4j
+public class OrderJournal {
+
+    // 每条记录：订单id、用户id、券id、校验和，各8字节
+    private static final int RECORD_SIZE = 32;
+
+    private static final long CHECKSUM_SEED = 0x5DEECE66DL;
+
+    private static final String CHECKPOINT_FILE = "checkpoint";
+
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final File dir;
+
+    // 每段的记录数
+    private final int segmentRecords;
+
+    // 追加后是否等到刷盘再返回
+    private final boolean sync;
+
+    // 还没删除的段，最后一个是正在写的段
+    private final Deque<Segment> segments = new ArrayDeque<>();
+
+    // append分配的下一个序号
+    private final AtomicLong nextSeq = new AtomicLong();
+
+    // 正在写的段，写不在这一段的序号时才加锁找段
+    private volatile Segment current;
+
+    // 写完的记录数，刷盘线程用来判断有没有新的写入
+    private final AtomicLong written = new AtomicLong();
+
+    // 刷盘线程之间互斥
+    private final Object forceLock = new Object();
+
+    // 上次刷盘时写完的记录数，只在forceLock里读写
+    private long forcedCount;
+
+    // 开始的刷盘轮数和完成的刷盘轮数，开始的只在forceLock里写
+    private volatile long flushStarted;
+    private volatile long flushRound;
+
+    // 消费线程已经取走的记录数，只有消费线程会写
+    private volatile long consumeSeq;
+
+    // 取走了但还在重试的记录，检查点不能越过它们
+    private final ConcurrentSkipListSet<Long> holds = new ConcurrentSkipListSet<>();
+
+    private final MappedByteBuffer checkpointBuffer;
+
+    private long checkpoint;
+
+    // 等待刷盘的追加线程在这里等
+    private final Object flushLock = new Object();
+
+    private static class Segment {
+        final long base;
+        final File file;
+        final MappedByteBuffer buffer;
+
+        Segment(long base, File file, MappedByteBuffer buffer) {
+            this.base = base;
+            this.file = file;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * 在空目录里创建新日志，已有的日志要先用recover读出来
+     */
+    public OrderJournal(File dir, int segmentRecords, boolean sync) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("创建日志目录失败：" + dir);
+        }
+        this.dir = dir;
+        this.segmentRecords = segmentRecords;
+        this.sync = sync;
+        this.checkpointBuffer = map(new File(dir, CHECKPOINT_FILE), 8);
+        this.current = newSegment(0);
+        segments.add(current);
+    }
+
+    /**
+     * 追加一条记录，序号由日志分配，调用方要保证追加的顺序和入队的顺序一致
+     * @return 记录的序号
+     */
+    public long append(long orderId, long userId, long voucherId) throws IOException {
+        long seq = nextSeq.getAndIncrement();
+        write(seq, orderId, userId, voucherId);
+        return seq;
+    }
+
+    /**
+     * 在序号seq的位置写一条记录，只写内存映射，不等刷盘
+     * 序号由调用方分配，要和订单在队列里的顺序一致，并且从0开始连续
+     */
+    public void write(long seq, long orderId, long userId, long voucherId) throws IOException {
+        Segment segment = current;
+        if (seq < segment.base || seq - segment.base >= segmentRecords) {
+            segment = segmentOf(seq);
+        }
+        int position = (int) (seq - segment.base) * RECORD_SIZE;
+        segment.buffer.putLong(position + 8, userId);
+        segment.buffer.putLong(position + 16, voucherId);
+        segment.buffer.putLong(position + 24, checksum(orderId, userId, voucherId));
+        // 订单id最后写，不为0才算一条完整的记录
+        segment.buffer.putLong(position, orderId);
+        written.incrementAndGet();
+    }
+
+    // 找到序号所在的段，后面的段还没建时建好
+    private synchronized Segment segmentOf(long seq) throws IOException {
+        for (Segment segment : segments) {
+            if (seq >= segment.base && seq - segment.base < segmentRecords) {
+                if (segment.base > current.base) {
+                    current = segment;
+                }
+                return segment;
+            }
+        }
+        while (segments.getLast().base + segmentRecords <= seq) {
+            segments.add(newSegment(segments.getLast().base + segmentRecords));
+        }
+        current = segments.getLast();
+        return current;
+    }
+
+    /**
+     * 把已经写入的记录刷盘，由刷盘线程定时调用，一次fsync覆盖这期间所有的写入
+     */
+    public void flush() {
+        synchronized (forceLock) {
+            flushStarted++;
+            long count = written.get();
+            if (count != forcedCount) {
+                List<Segment> live;
+                synchronized (this) {
+                    live = new ArrayList<>(segments);
+                }
+                // 并发写的记录可能落在相邻的两段里，没删除的段都刷一遍
+                for (Segment segment : live) {
+                    segment.buffer.force();
+                }
+                forcedCount = count;
+            }
+            flushRound = flushStarted;
+            preallocate(count);
+        }
+        synchronized (flushLock) {
+            flushLock.notifyAll();
+        }
+    }
+
+    // 正在写的段用了一半后提前建好下一段，写的时候不用等建文件
+    private synchronized void preallocate(long count) {
+        Segment last = segments.getLast();
+        if (last != current || count - current.base < segmentRecords / 2) {
+            return;
+        }
+        try {
+            segments.add(newSegment(last.base + segmentRecords));
+        } catch (IOException e) {
+            log.warn("预建日志段失败，写到时再建", e);
+        }
+    }
+
+    public boolean isSync() {
+        return sync;
+    }
+
+    /**
+     * 等到刚写的记录刷盘，开启同步刷盘时写完后调用
+     * 等一轮在写入之后开始的刷盘，同一个刷盘周期里的写入一起返回
+     */
+    public void awaitFlushed() throws InterruptedException {
+        long round = flushStarted + 1;
+        synchronized (flushLock) {
+            while (flushRound < round) {
+                flushLock.wait(10);
+            }
+        }
+    }
+
+    /**
+     * 消费线程取走count条记录
+     * @return 第一条记录的序号，之后的按顺序递增
+     */
+    public long take(int count) {
+        long seq = consumeSeq;
+        consumeSeq = seq + count;
+        return seq;
+    }
+
+    /**
+     * 记录交给重试线程了，写库结束前检查点不能越过它
+     */
+    public void hold(long seq) {
+        holds.add(seq);
+    }
+
+    /**
+     * 重试结束，释放记录并推进检查点
+     */
+    public void release(long seq) {
+        holds.remove(seq);
+        checkpoint();
+    }
+
+    /**
+     * 推进检查点到已经处理完的位置，删除检查点之前的段
+     */
+    public synchronized void checkpoint() {
+        long seq = consumeSeq;
+        Iterator<Long> iterator = holds.iterator();
+        if (iterator.hasNext()) {
+            seq = Math.min(seq, iterator.next());
+        }
+        if (seq <= checkpoint) {
+            return;
+        }
+        checkpoint = seq;
+        checkpointBuffer.putLong(0, seq);
+        // 正在写的段不删
+        while (segments.size() > 1 && segments.getFirst().base + segmentRecords <= seq) {
+            Segment segment = segments.removeFirst();
+            if (!segment.file.delete()) {
+                log.warn("删除日志段失败：{}", segment.file);
+            }
+        }
+    }
+
+    private Segment newSegment(long base) throws IOException {
+        File file = new File(dir, String.format("%020d%s", base, SEGMENT_SUFFIX));
+        return new Segment(base, file, map(file, (long) segmentRecords * RECORD_SIZE));
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            // 映射在通道关闭后仍然有效
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long checksum(long orderId, long userId, long voucherId) {
+        return (orderId * 0x9E3779B97F4A7C15L) ^ (userId * 0xC2B2AE3D27D4EB4FL) ^ (voucherId * 0x165667B19E3779F9L) ^ CHECKSUM_SEED;
+    }
+
+    /**
+     * 读出目录下所有日志里检查点之后的记录，同一个订单只保留一条
+     */
+    public static List<VoucherOrder> recover(File root) throws IOException {
+        // 换代时崩溃，同一个订单可能同时在新旧两代日志里
+        Map<Long, VoucherOrder> voucherOrders = new LinkedHashMap<>();
+        File[] generations = root.listFiles(File::isDirectory);
+        if (generations == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(generations);
+        for (File generation : generations) {
+            File[] journals = generation.listFiles(File::isDirectory);
+            if (journals == null) {
+                continue;
+            }
+            Arrays.sort(journals);
+            for (File journal : journals) {
+                readJournal(journal, voucherOrders);
+            }
+        }
+        return new ArrayList<>(voucherOrders.values());
+    }
+
+    private static void readJournal(File dir, Map<Long, VoucherOrder> voucherOrders) throws IOException {
+        long checkpoint = 0;
+        File checkpointFile = new File(dir, CHECKPOINT_FILE);
+        if (checkpointFile.length() == 8) {
+            checkpoint = map(checkpointFile, 8).getLong(0);
+        }
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            long base = Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+            long records = file.length() / RECORD_SIZE;
+            if (base + records <= checkpoint) {
+                continue;
+            }
+            MappedByteBuffer buffer = map(file, file.length());
+            // 多个线程并发写不同的位置，崩溃时没写完的记录后面可能还有写完的，跳过继续读
+            for (long i = Math.max(0, checkpoint - base); i < records; i++) {
+                int position = (int) i * RECORD_SIZE;
+                long orderId = buffer.getLong(position);
+                if (orderId == 0) {
+                    continue;
+                }
+                long userId = buffer.getLong(position + 8);
+                long voucherId = buffer.getLong(position + 16);
+                if (buffer.getLong(position + 24) != checksum(orderId, userId, voucherId)) {
+                    // 崩溃时没写完的记录
+                    log.warn("日志{}第{}条记录不完整", file, i);
+                    continue;
+                }
+                VoucherOrder voucherOrder = new VoucherOrder();
+                voucherOrder.setId(orderId);
+                voucherOrder.setUserId(userId);
+                voucherOrder.setVoucherId(voucherId);
+                voucherOrders.putIfAbsent(orderId, voucherOrder);
+            }
+        }
+    }
+
+    /**
+     * 删除root下除keep以外的日志，重放的订单已经追加到keep里了
+     */
+    public static void deleteOthers(File root, File keep) {
+        File[] generations = root.listFiles(File::isDirectory);
+        if (generations == null) {
+            return;
+        }
+        for (File generation : generations) {
+            if (!generation.equals(keep)) {
+                deleteRecursively(generation);
+            }
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        if (!file.delete()) {
+            log.warn("删除日志失败：{}", file);
+        }
+    }
+}
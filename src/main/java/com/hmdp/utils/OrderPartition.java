@@ -0,0 +1,191 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.OrderPartitionDTO;
+import com.hmdp.entity.VoucherOrder;
+
+import java.io.IOException;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 订单分区，每个分区由一个消费线程处理
+ * queue模式下每个分区有自己的本地队列，订单按userId哈希落到分区，同一个用户的订单总在同一个线程里按顺序处理；
+ * stream模式下分区对应消费者组里的一个消费者，没有本地队列
+ */
+public class OrderPartition {
+
+    private final String name;
+
+    // 本地队列，stream模式下为null
+    private final OrderHandoff queue;
+
+    // 预写日志，没有开启时为null
+    private final OrderJournal journal;
+
+    // 入队的订单数
+    private final AtomicLong enqueued = new AtomicLong();
+
+    // 已经写入数据库的订单数
+    private final AtomicLong processed = new AtomicLong();
+
+    // 按秒统计吞吐量，只有消费线程会写
+    private long windowStart = System.currentTimeMillis();
+    private long windowCount;
+    private volatile long throughput;
+
+    // stream模式下消费线程最近读到的消息在队列里等了多久(毫秒)
+    private volatile long readWaitMillis;
+
+    // stream模式下开始处理当前这批消息的时间，空闲时为0
+    private volatile long busySince;
+
+    /**
+     * @param name 分区名称
+     * @param queue 本地队列，为null表示没有本地队列
+     */
+    public OrderPartition(String name, OrderHandoff queue) {
+        this(name, queue, null);
+    }
+
+    /**
+     * @param journal 预写日志，订单先追加到日志再入队
+     */
+    public OrderPartition(String name, OrderHandoff queue, OrderJournal journal) {
+        this.name = name;
+        this.queue = queue;
+        this.journal = journal;
+    }
+
+    /**
+     * 订单放入分区队列，重放的订单用
+     * @return 队列满了返回false
+     */
+    public boolean offer(VoucherOrder voucherOrder) throws IOException {
+        long createMillis = voucherOrder.getCreateTime() == null
+                ? System.currentTimeMillis()
+                : voucherOrder.getCreateTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        return offer(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId(), createMillis);
+    }
+
+    /**
+     * 订单放入分区队列，下单请求用，不用创建VoucherOrder对象
+     * @param createMillis 受理的时间戳(毫秒)
+     * @return 队列满了返回false
+     */
+    public boolean offer(long orderId, long userId, long voucherId, long createMillis) throws IOException {
+        if (journal == null) {
+            if (!queue.offer(orderId, userId, voucherId, createMillis)) {
+                return false;
+            }
+        } else {
+            // 日志里的顺序要和队列里的顺序一致，由队列保证，环形队列不加锁
+            if (queue.offer(orderId, userId, voucherId, createMillis, journal) < 0) {
+                return false;
+            }
+            if (journal.isSync()) {
+                try {
+                    journal.awaitFlushed();
+                } catch (InterruptedException e) {
+                    // 订单已经入队了，不影响受理
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        enqueued.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * 取出一批订单，没有订单时阻塞，拿到第一个后最多攒batchSize个或者最多再等waitMillis毫秒
+     * 写预写日志失败被拒绝的订单是null
+     */
+    public void drain(List<VoucherOrder> batch, int batchSize, long waitMillis) throws InterruptedException {
+        queue.drain(batch, batchSize, waitMillis);
+    }
+
+    /**
+     * 记录处理完的订单数，由消费线程调用
+     */
+    public void processed(int count) {
+        busySince = 0;
+        processed.addAndGet(count);
+        windowCount += count;
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= 1000) {
+            throughput = windowCount * 1000 / (now - windowStart);
+            windowStart = now;
+            windowCount = 0;
+        }
+    }
+
+    /**
+     * stream模式下读到一批消息后调用
+     * @param oldestMillis 这批消息里最早的消息id里的时间戳
+     */
+    public void read(long oldestMillis) {
+        long now = System.currentTimeMillis();
+        readWaitMillis = Math.max(0, now - oldestMillis);
+        busySince = now;
+    }
+
+    /**
+     * stream模式下没有读到消息时调用
+     */
+    public void idle() {
+        readWaitMillis = 0;
+    }
+
+    /**
+     * 新订单现在进来要排队多久(毫秒)
+     * queue模式下是队头订单已经等待的时间；stream模式下是最近读到的消息等待的时间，
+     * 消费线程卡在一批消息上时，这批消息处理了多久也算进去
+     */
+    public long waitMillis() {
+        if (queue != null) {
+            long createMillis = queue.headCreateMillis();
+            return createMillis == 0 ? 0 : Math.max(0, System.currentTimeMillis() - createMillis);
+        }
+        long busy = busySince;
+        long wait = readWaitMillis;
+        return busy == 0 ? wait : Math.max(wait, System.currentTimeMillis() - busy);
+    }
+
+    /**
+     * 队列里的订单数是否达到了容量的ratio，stream模式下没有本地队列，总是false
+     */
+    public boolean isFull(double ratio) {
+        return queue != null && queue.size() >= queue.capacity() * ratio;
+    }
+
+    /**
+     * 当前的监控数据
+     * @param pending stream模式下消费者还没确认的消息数，queue模式下不用
+     */
+    public OrderPartitionDTO toDTO(long pending) {
+        OrderPartitionDTO dto = new OrderPartitionDTO();
+        dto.setName(name);
+        dto.setProcessed(processed.get());
+        dto.setThroughput(throughput);
+        dto.setWaitMillis(waitMillis());
+        if (queue == null) {
+            dto.setQueueSize(0);
+            dto.setEnqueued(processed.get() + pending);
+            dto.setLag(pending);
+        } else {
+            dto.setQueueSize(queue.size());
+            dto.setEnqueued(enqueued.get());
+            // 还在队列里的加上正在写库的
+            dto.setLag(enqueued.get() - processed.get());
+        }
+        return dto;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public OrderJournal getJournal() {
+        return journal;
+    }
+}
@@ -0,0 +1,209 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 预分配的环形队列，多个生产者、一个消费者，不加锁
+ * 生产者CAS申请序号，把订单写进复用的槽位后发布；消费者按序号顺序读出已发布的槽位，读完后槽位可以被下一圈复用
+ * 下单请求线程不创建VoucherOrder对象，写库要用的对象由消费线程创建
+ * 开启预写日志时申请到的序号就是日志里的位置，写日志也不用加锁
+ */
+public class OrderRingBuffer implements OrderHandoff {
+
+    /**
+     * 消费线程没有订单可读时的等待方式
+     */
+    public enum WaitStrategy {
+        // 一直自旋，延迟最低，一直占着一个CPU
+        BUSY_SPIN,
+        // 让出CPU，有其他线程要跑时让它们先跑
+        YIELD,
+        // 先自旋一会儿，再短暂挂起，空闲时基本不占CPU
+        PARK
+    }
+
+    // 可复用的槽位
+    private static final class Slot {
+        long orderId;
+        long userId;
+        long voucherId;
+        long createMillis;
+        // 写预写日志失败，订单被拒绝了，槽位只占日志里的位置
+        boolean rejected;
+    }
+
+    private static final int SPIN_TRIES = 100;
+
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final Slot[] slots;
+
+    private final int mask;
+
+    // 每个槽位最后发布的序号，等于要读的序号才说明生产者写完了
+    private final AtomicLongArray published;
+
+    // 生产者已经申请到的最大序号
+    private final AtomicLong claimed = new AtomicLong(-1);
+
+    // 消费者已经读完的最大序号，生产者不能超过它一整圈，只有消费线程会写
+    private final AtomicLong consumed = new AtomicLong(-1);
+
+    private final WaitStrategy waitStrategy;
+
+    /**
+     * @param capacity 容量，向上取到2的幂，用位运算算槽位下标
+     */
+    public OrderRingBuffer(int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public boolean offer(long orderId, long userId, long voucherId, long createMillis) {
+        long seq = claim();
+        if (seq < 0) {
+            return false;
+        }
+        publish(seq, orderId, userId, voucherId, createMillis, false);
+        return true;
+    }
+
+    @Override
+    public long offer(long orderId, long userId, long voucherId, long createMillis, OrderJournal journal) throws IOException {
+        long seq = claim();
+        if (seq < 0) {
+            return -1;
+        }
+        try {
+            // 日志和队列都从0开始按序号排，日志里的顺序和队列里的一致
+            journal.write(seq, orderId, userId, voucherId);
+        } catch (IOException e) {
+            // 和加锁的队列一样拒绝订单，由调用方撤销扣减；序号已经申请了，必须发布一个占位，否则消费者会一直等这个槽位
+            publish(seq, 0, 0, 0, 0, true);
+            throw e;
+        }
+        publish(seq, orderId, userId, voucherId, createMillis, false);
+        return seq;
+    }
+
+    // CAS申请一个序号，满了返回-1
+    private long claim() {
+        long seq;
+        do {
+            seq = claimed.get() + 1;
+            if (seq - slots.length > consumed.get()) {
+                // 槽位还没被消费者读完，满了
+                return -1;
+            }
+        } while (!claimed.compareAndSet(seq - 1, seq));
+        return seq;
+    }
+
+    private void publish(long seq, long orderId, long userId, long voucherId, long createMillis, boolean rejected) {
+        int index = (int) seq & mask;
+        Slot slot = slots[index];
+        slot.orderId = orderId;
+        slot.userId = userId;
+        slot.voucherId = voucherId;
+        slot.createMillis = createMillis;
+        slot.rejected = rejected;
+        // 发布，之前对槽位的写入对消费者可见
+        published.lazySet(index, seq);
+    }
+
+    @Override
+    public void drain(List<VoucherOrder> batch, int batchSize, long waitMillis) throws InterruptedException {
+        long next = consumed.get() + 1;
+        int idle = 0;
+        while (!isPublished(next)) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            idle = idle(idle);
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        while (true) {
+            while (batch.size() < batchSize && isPublished(next)) {
+                batch.add(read(next++));
+            }
+            // 读完的槽位还给生产者
+            consumed.lazySet(next - 1);
+            if (batch.size() >= batchSize || System.nanoTime() >= deadline || Thread.currentThread().isInterrupted()) {
+                return;
+            }
+            idle = idle(idle);
+        }
+    }
+
+    private boolean isPublished(long seq) {
+        return published.get((int) seq & mask) == seq;
+    }
+
+    private VoucherOrder read(long seq) {
+        Slot slot = slots[(int) seq & mask];
+        if (slot.rejected) {
+            return null;
+        }
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(slot.orderId);
+        voucherOrder.setUserId(slot.userId);
+        voucherOrder.setVoucherId(slot.voucherId);
+        voucherOrder.setCreateTime(LocalDateTime.ofInstant(Instant.ofEpochMilli(slot.createMillis), ZoneId.systemDefault()));
+        return voucherOrder;
+    }
+
+    // 等待一次，返回累计的空等次数
+    private int idle(int idle) {
+        switch (waitStrategy) {
+            case YIELD:
+                Thread.yield();
+                break;
+            case PARK:
+                if (idle >= SPIN_TRIES) {
+                    LockSupport.parkNanos(PARK_NANOS);
+                }
+                break;
+            default:
+                break;
+        }
+        return idle + 1;
+    }
+
+    @Override
+    public int size() {
+        return (int) Math.max(0, claimed.get() - consumed.get());
+    }
+
+    @Override
+    public int capacity() {
+        return slots.length;
+    }
+
+    @Override
+    public long headCreateMillis() {
+        long head = consumed.get() + 1;
+        if (!isPublished(head)) {
+            return 0;
+        }
+        // 消费线程可能正好读走了这个槽位，读到下一圈的时间也只是监控数据有点偏差
+        return slots[(int) head & mask].createMillis;
+    }
+}
@@ -0,0 +1,178 @@
+package com.hmdp.utils;
+
+import cn.hutool.cache.CacheUtil;
+import cn.hutool.cache.impl.LRUCache;
+import com.hmdp.entity.VoucherOrder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 秒杀订单的状态表，订单异步写库，客户端轮询状态时不用查数据库
+ * 本地是有容量上限的LRU缓存，Redis里按订单id里的下单时间每分钟一个hash，整个hash一起过期
+ * 订单可能由其他节点的消费者写库，本地只缓存CREATED、FAILED这样不会再变的状态，PENDING每次都以Redis为准
+ */
+@Slf4j
+@Component
+public class OrderStatusCache {
+
+    public enum Status {
+        // 已受理，还没写入数据库
+        PENDING,
+        // 已写入数据库
+        CREATED,
+        // 处理失败
+        FAILED
+    }
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 本地最多缓存的订单状态数
+    @Value("${hmdp.seckill.status.local-capacity:100000}")
+    private int localCapacity;
+
+    // 状态保留的时间(分钟)
+    @Value("${hmdp.seckill.status.ttl:30}")
+    private long ttlMinutes;
+
+    // 把受理的订单写成PENDING的间隔(毫秒)
+    @Value("${hmdp.seckill.status.flush-millis:10}")
+    private long flushMillis;
+
+    // 本地缓存的最终状态
+    private LRUCache<Long, Status> localCache;
+
+    // 本节点受理、还没写进Redis的订单
+    private LRUCache<Long, Boolean> localPending;
+
+    // 等待写成PENDING的订单id，攒一批用一个pipeline写入
+    private final Queue<Long> pendingBuffer = new ConcurrentLinkedQueue<>();
+
+    private ScheduledExecutorService flushExecutor;
+
+    @PostConstruct
+    private void init() {
+        localCache = CacheUtil.newLRUCache(localCapacity, TimeUnit.MINUTES.toMillis(ttlMinutes));
+        localPending = CacheUtil.newLRUCache(localCapacity, TimeUnit.MINUTES.toMillis(ttlMinutes));
+        flushExecutor = Executors.newSingleThreadScheduledExecutor();
+        flushExecutor.scheduleWithFixedDelay(this::flushPending, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        flushExecutor.shutdownNow();
+        flushPending();
+    }
+
+    /**
+     * 秒杀脚本受理后调用，不在请求线程里访问Redis，由后台线程攒一批写入
+     */
+    public void pending(Long orderId) {
+        localPending.put(orderId, Boolean.TRUE);
+        pendingBuffer.offer(orderId);
+    }
+
+    /**
+     * 消费线程写完一批订单后调用，一次pipeline写入Redis
+     */
+    public void update(Collection<VoucherOrder> voucherOrders, Status status) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        Set<String> keys = new HashSet<>();
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                if (status == Status.PENDING) {
+                    localCache.remove(voucherOrder.getId());
+                } else {
+                    localCache.put(voucherOrder.getId(), status);
+                    localPending.remove(voucherOrder.getId());
+                }
+                String key = keyOf(voucherOrder.getId());
+                stringConnection.hSet(key, voucherOrder.getId().toString(), status.name());
+                keys.add(key);
+            }
+            for (String key : keys) {
+                stringConnection.expire(key, TimeUnit.MINUTES.toSeconds(ttlMinutes));
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 查询订单状态，先查本地的最终状态，再查Redis，最后是本节点刚受理还没写进Redis的订单
+     * @return 都没有时返回null，由调用方查数据库，编造的订单id不会被当成处理中
+     */
+    public Status query(Long orderId) {
+        Status status = localCache.get(orderId);
+        if (status != null) {
+            return status;
+        }
+        String value = (String) stringRedisTemplate.opsForHash().get(keyOf(orderId), orderId.toString());
+        if (value != null) {
+            status = Status.valueOf(value);
+            if (status != Status.PENDING) {
+                localCache.put(orderId, status);
+                localPending.remove(orderId);
+            }
+            return status;
+        }
+        if (localPending.containsKey(orderId)) {
+            return Status.PENDING;
+        }
+        return null;
+    }
+
+    // 受理的订单写成PENDING，用HSETNX，消费者已经写了最终状态的不覆盖
+    private void flushPending() {
+        try {
+            while (!pendingBuffer.isEmpty()) {
+                List<Long> orderIds = new ArrayList<>();
+                Long orderId;
+                while (orderIds.size() < 1000 && (orderId = pendingBuffer.poll()) != null) {
+                    orderIds.add(orderId);
+                }
+                Set<String> keys = new HashSet<>();
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (Long id : orderIds) {
+                        String key = keyOf(id);
+                        stringConnection.hSetNX(key, id.toString(), Status.PENDING.name());
+                        keys.add(key);
+                    }
+                    for (String key : keys) {
+                        stringConnection.expire(key, TimeUnit.MINUTES.toSeconds(ttlMinutes));
+                    }
+                    return null;
+                });
+            }
+        } catch (Exception e) {
+            // 没写进去的订单其他节点查不到，受理的节点本地还有，写库后状态会更新
+            log.error("写入订单受理状态失败", e);
+        }
+    }
+
+    // 订单id的高位是下单时间，同一分钟的订单放在一个hash里
+    private String keyOf(Long orderId) {
+        return RedisConstants.SECKILL_STATUS_KEY + RedisIdWorker.timestampOfId(orderId) / 60;
+    }
+}
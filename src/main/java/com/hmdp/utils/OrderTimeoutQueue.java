@@ -0,0 +1,121 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 未支付订单的超时队列，用Redis的zset按超时时间排序，取到期订单只看zset头部，不扫订单表
+ */
+@Component
+public class OrderTimeoutQueue {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    // 秒杀库存分片数，和秒杀脚本一致
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    // 下单记录是否用位图编码，和秒杀脚本一致
+    @Value("${hmdp.seckill.buyer-bitmap:false}")
+    private boolean buyerBitmap;
+
+    // 下单后多久不支付就取消(分钟)
+    @Value("${hmdp.seckill.pay-timeout.minutes:15}")
+    private long timeoutMinutes;
+
+    // 取出的订单多久没处理完可以被重新取出(秒)
+    @Value("${hmdp.seckill.pay-timeout.lease-seconds:60}")
+    private long leaseSeconds;
+
+    /**
+     * 订单写入数据库后加入超时队列，一次pipeline写入
+     */
+    public void add(Collection<VoucherOrder> voucherOrders) {
+        if (voucherOrders.isEmpty()) {
+            return;
+        }
+        long timeoutAt = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(timeoutMinutes);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (VoucherOrder voucherOrder : voucherOrders) {
+                stringConnection.zAdd(RedisConstants.ORDER_TIMEOUT_KEY, timeoutAt, voucherOrder.getId().toString());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * 取出最多count个已经超时的订单id，取出的订单在租期内不会被其他节点取到
+     */
+    public List<Long> poll(int count) {
+        long now = System.currentTimeMillis();
+        List<?> members = redisScripts.execute("order-timeout-poll", List.class,
+                Collections.singletonList(RedisConstants.ORDER_TIMEOUT_KEY),
+                String.valueOf(now),
+                String.valueOf(count),
+                String.valueOf(now + TimeUnit.SECONDS.toMillis(leaseSeconds)));
+        if (members == null || members.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Long> orderIds = new ArrayList<>(members.size());
+        for (Object member : members) {
+            orderIds.add(Long.valueOf((String) member));
+        }
+        return orderIds;
+    }
+
+    /**
+     * 处理完的订单移出队列，已支付的订单也在这里移出
+     */
+    public void remove(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.opsForZSet().remove(RedisConstants.ORDER_TIMEOUT_KEY, orderIds.stream().map(String::valueOf).toArray());
+    }
+
+    /**
+     * 取消的订单或者没能入队的订单把库存还给Redis，并把用户移出下单记录，可以重新抢
+     */
+    public void returnStock(Collection<VoucherOrder> cancelled) {
+        Set<Long> voucherIds = new HashSet<>();
+        for (VoucherOrder voucherOrder : cancelled) {
+            // 补回用户的主分片
+            int homeShard = SeckillKeys.homeShard(voucherOrder.getUserId(), stockShards);
+            Long returned = redisScripts.execute("seckill-rollback", Long.class,
+                    Arrays.asList(SeckillKeys.stockKey(voucherOrder.getVoucherId(), homeShard, stockShards),
+                            SeckillKeys.buyerKey(voucherOrder.getVoucherId(), voucherOrder.getUserId(), stockShards, buyerBitmap)),
+                    voucherOrder.getUserId().toString(),
+                    buyerBitmap ? String.valueOf(SeckillKeys.offset(voucherOrder.getUserId(), stockShards)) : "",
+                    "1", "1");
+            if (returned != null && returned == 1) {
+                voucherIds.add(voucherOrder.getVoucherId());
+            }
+        }
+        // 每张券只通知一次
+        for (Long voucherId : voucherIds) {
+            soldOutRegistry.replenished(voucherId);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+/**
+ * 存在Redis位图里的布隆过滤器，每个节点在本地保留一份，判断时不访问Redis
+ * 新增元素写Redis的同时通过发布订阅通知其他节点；整个重建后通知其他节点重新加载
+ * 加载完成前mightContain都返回true，不会误拦
+ */
+@Slf4j
+public class RedisBloomFilter implements MessageListener {
+
+    // 通知其他节点重新加载的消息，其他消息是新增的元素
+    private static final String RELOAD = "reload";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final String key;
+
+    private final String channel;
+
+    // 按配置算好大小的空过滤器，加载和重建时复制它的大小
+    private final BloomFilter empty;
+
+    // 本地的过滤器，还没加载时为null
+    private volatile BloomFilter local;
+
+    public RedisBloomFilter(StringRedisTemplate stringRedisTemplate, RedisMessageListenerContainer container,
+                            String key, long expectedInsertions, double fpp) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.key = key;
+        this.channel = key + ":sync";
+        this.empty = new BloomFilter(expectedInsertions, fpp);
+        container.addMessageListener(this, new ChannelTopic(channel));
+    }
+
+    /**
+     * false表示一定不存在
+     */
+    public boolean mightContain(Object element) {
+        BloomFilter filter = local;
+        return filter == null || filter.mightContain(element);
+    }
+
+    /**
+     * 新增元素，写入Redis和本地，并通知其他节点
+     */
+    public void add(Object element) {
+        long[] offsets = empty.offsets(element);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (long offset : offsets) {
+                stringConnection.setBit(key, offset, true);
+            }
+            return null;
+        });
+        BloomFilter filter = local;
+        if (filter != null) {
+            filter.put(element);
+        }
+        stringRedisTemplate.convertAndSend(channel, element.toString());
+    }
+
+    /**
+     * 从Redis加载到本地
+     * @return Redis里没有或者大小和配置不一致时返回false，要重建
+     */
+    public boolean load() {
+        byte[] bits = stringRedisTemplate.execute((RedisCallback<byte[]>) connection ->
+                connection.get(key.getBytes(StandardCharsets.UTF_8)));
+        if (bits == null || bits.length != empty.byteSize()) {
+            return false;
+        }
+        local = empty.copyWith(bits);
+        return true;
+    }
+
+    /**
+     * 用全部元素重建，去掉已经删除的元素，整个覆盖Redis里的位图
+     * 重建期间其他节点add的元素会被覆盖掉，调用方要在重建后把这期间新增的元素重新add
+     * @param source 把所有元素依次交给传入的Consumer
+     */
+    public void rebuild(Consumer<Consumer<Object>> source) {
+        BloomFilter filter = empty.copyWith(new byte[empty.byteSize()]);
+        source.accept(filter::put);
+        byte[] bits = filter.toByteArray();
+        stringRedisTemplate.execute((RedisCallback<Object>) connection ->
+                connection.set(key.getBytes(StandardCharsets.UTF_8), bits));
+        local = filter;
+        stringRedisTemplate.convertAndSend(channel, RELOAD);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (RELOAD.equals(body)) {
+                load();
+                return;
+            }
+            BloomFilter filter = local;
+            if (filter != null) {
+                filter.put(body);
+            }
+        } catch (Exception e) {
+            log.error("处理布隆过滤器{}的通知失败：{}", key, body, e);
+        }
+    }
+}
@@ -10,11 +10,51 @@ public class RedisConstants {
 
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    // 缓存修改的通知频道，消息内容是key，各节点收到后删除本地缓存
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+
+    // 所有商铺id的布隆过滤器，Redis位图
+    public static final String SHOP_BLOOM_KEY = "bloom:shop";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    // 位图编码的下单记录，下单记录的key后面加上块号，每块SECKILL_BITMAP_CHUNK_BITS位
+    public static final String SECKILL_BITMAP_SUFFIX = ":bitmap:";
+    public static final int SECKILL_BITMAP_CHUNK_BITS = 65536;
+    // 分片里写过的位图块，下单记录的key后面加上这个后缀，set的成员是位图块的key，对账时按它统计下单人数
+    public static final String SECKILL_BITMAP_CHUNKS_SUFFIX = ":bitmaps";
+    // 秒杀限流的全局额度，每个窗口按剩余库存重新生成
+    public static final String SECKILL_BUDGET_KEY = "seckill:budget:";
+    // 各个节点租走还没卖掉的库存，hash的field是节点id，value是库存数
+    public static final String SECKILL_LEASE_KEY = "seckill:lease:";
+    // 租库存的节点的心跳，后面加上节点id，过期说明节点宕机了，它名下的租约由其他节点回收
+    public static final String SECKILL_LEASE_NODE_KEY = "seckill:lease:node:";
+    // 秒杀券的可购时间，hash的begin、end两个字段，毫秒时间戳
+    public static final String SECKILL_TIME_KEY = "seckill:time:";
+    // 库存补回的通知频道，消息内容是券id
+    public static final String SECKILL_REPLENISH_CHANNEL = "seckill:replenish";
+    // 库存分片的订单id号段，hash的day、next、end字段，秒杀脚本从这里分配订单id
+    public static final String SECKILL_ID_KEY = "seckill:id:";
+    // 秒杀订单状态，按下单时间每分钟一个hash
+    public static final String SECKILL_STATUS_KEY = "seckill:status:";
+    // 订单消息队列，每个库存分片一个，后面加上分片的hash tag，和秒杀脚本用到的key在同一个slot
+    public static final String SECKILL_STREAM_KEY = "stream.orders:";
+    // 所有订单消息队列的key，zset的score是券的结束时间(毫秒)，消费者从这里找到要读的队列
+    public static final String SECKILL_STREAMS_KEY = "seckill:streams";
+    public static final String SECKILL_STREAM_GROUP = "g1";
+    // 券结束超过这个时间(毫秒)、消息都处理完的队列删除
+    public static final Long SECKILL_STREAM_RETENTION = 3600000L;
+    // 消费者下线后，pending消息空闲超过这个时间(毫秒)才会被其他消费者认领
+    public static final Long SECKILL_STREAM_CLAIM_IDLE = 60000L;
+    // 死信订单，hash的field是订单id，value是DeadLetterDTO的json
+    public static final String SECKILL_DEAD_LETTER_KEY = "seckill:dead-letter";
+    // 死信订单按原因计数，hash的field是OrderFailReason
+    public static final String SECKILL_DEAD_LETTER_COUNT_KEY = "seckill:dead-letter:count";
+    // 未支付订单的超时队列，zset的score是超时的时间戳(毫秒)，member是订单id
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
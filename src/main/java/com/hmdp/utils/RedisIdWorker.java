@@ -1,6 +1,7 @@
 package com.hmdp.utils;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.stereotype.Component;
@@ -18,27 +19,64 @@ public class RedisIdWorker {
     // 开始时间戳，2003-9-19-1-2-3
     private static final long BEGIN_TIMESTAMP = 1063933323L;
 
-    // 序列号位数
+    // 序列号位数，seckill.lua里拼订单id时也按这个位数
     private static final long COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
+
     @Autowired
     private StringRedisTemplate stringRedisTemplate;
 
+    // 秒杀脚本一次领取的号段长度
+    @Value("${hmdp.id.segment-size:1000}")
+    private long segmentSize;
+
     /**
      * 返回64位id，第0位是符号位，第1-31位是时间戳，第32-64位是序列号
      */
     public long nextId(String keyPrefix) {
         // 生成时间戳
         LocalDateTime now = LocalDateTime.now();
-        long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
-        long timeStamp = nowSecond - BEGIN_TIMESTAMP;
+        long timeStamp = timestampOf(now);
 
         // 生成序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
+        long count = stringRedisTemplate.opsForValue().increment(countKeyOf(keyPrefix, now));
         return timeStamp << COUNT_BITS |  count;
     }
 
+    /**
+     * 领取一个序列号号段[end - segmentSize + 1, end]，返回end，和nextId用同一个key，序列号互不重复
+     * 秒杀脚本从号段里分配序列号，在脚本里拼出和nextId格式一样的id
+     */
+    public long nextSegment(String keyPrefix, LocalDateTime now) {
+        return stringRedisTemplate.opsForValue().increment(countKeyOf(keyPrefix, now), segmentSize);
+    }
+
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * id的时间戳部分，秒杀脚本拼订单id时由java传入
+     */
+    public static long timestampOf(LocalDateTime now) {
+        return now.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP;
+    }
+
+    /**
+     * 从id里取出时间戳部分，和timestampOf(LocalDateTime.now())比较可以得到id生成了多少秒
+     */
+    public static long timestampOfId(long id) {
+        return id >>> COUNT_BITS;
+    }
+
+    /**
+     * 序列号的key，每天一个
+     */
+    public static String countKeyOf(String keyPrefix, LocalDateTime now) {
+        return "icr:" + keyPrefix + ":" + now.format(DATE_FORMATTER);
+    }
+
     public static void main(String[] args) {
         LocalDateTime time = LocalDateTime.of(2003, 9, 19, 1, 2, 3);
         long second = time.toEpochSecond(ZoneOffset.UTC);
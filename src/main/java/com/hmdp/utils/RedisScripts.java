@@ -0,0 +1,88 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.support.PathMatchingResourcePatternResolver;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * lua脚本注册表，启动时读取resources/lua下的所有脚本并SCRIPT LOAD到Redis，按文件名(不带.lua)调用
+ * 调用时用EVALSHA只传脚本的sha1，Redis重启或切换节点后脚本丢失时，收到NOSCRIPT会自动改用EVAL重新发送脚本
+ * 脚本用到的key都要通过keys传入
+ */
+@Slf4j
+@Component
+public class RedisScripts {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // 脚本名 -> 脚本内容
+    private final Map<String, String> sources = new ConcurrentHashMap<>();
+
+    // 脚本名:返回值类型 -> 脚本
+    private final Map<String, DefaultRedisScript<?>> scripts = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() throws IOException {
+        org.springframework.core.io.Resource[] resources = new PathMatchingResourcePatternResolver()
+                .getResources("classpath*:lua/*.lua");
+        for (org.springframework.core.io.Resource resource : resources) {
+            String filename = resource.getFilename();
+            if (filename == null) {
+                continue;
+            }
+            String source;
+            try (InputStream in = resource.getInputStream()) {
+                source = StreamUtils.copyToString(in, StandardCharsets.UTF_8);
+            }
+            sources.put(filename.substring(0, filename.length() - ".lua".length()), source);
+        }
+        // 提前加载，第一次调用就能用EVALSHA，加载失败不影响启动，调用时会回退到EVAL
+        try {
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                for (String source : sources.values()) {
+                    connection.scriptLoad(source.getBytes(StandardCharsets.UTF_8));
+                }
+                return null;
+            });
+            log.info("加载了{}个lua脚本", sources.size());
+        } catch (Exception e) {
+            log.warn("预加载lua脚本失败", e);
+        }
+    }
+
+    /**
+     * 执行脚本
+     * @param name 脚本的文件名，不带.lua
+     * @param resultType 返回值类型，Long、List、Boolean或String
+     * @param keys 脚本用到的所有key
+     * @param args 脚本参数
+     */
+    public <T> T execute(String name, Class<T> resultType, List<String> keys, Object... args) {
+        return stringRedisTemplate.execute(script(name, resultType), keys, args);
+    }
+
+    @SuppressWarnings("unchecked")
+    private <T> DefaultRedisScript<T> script(String name, Class<T> resultType) {
+        return (DefaultRedisScript<T>) scripts.computeIfAbsent(name + ":" + resultType.getName(), k -> {
+            String source = sources.get(name);
+            if (source == null) {
+                throw new IllegalArgumentException("没有lua脚本：" + name);
+            }
+            return new DefaultRedisScript<>(source, resultType);
+        });
+    }
+}
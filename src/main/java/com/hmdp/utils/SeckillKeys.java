@@ -0,0 +1,133 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 秒杀相关的Redis key，脚本用到的key都由这里算好通过KEYS传入，脚本里不再拼key
+ * 不分片时同一张券的key都带{voucherId}这个hash tag，在集群里落在同一个slot；
+ * 分片时每个分片的key带{voucherId:shard}，各个分片落在不同的slot，秒杀脚本只操作用户主分片的key
+ * 下单记录用位图编码时，用户id对应到位图的一位，每块65536位，只有有人下单的块才占内存；
+ * 分片时用户的主分片是userId % shards，同一个主分片里的用户id除以分片数后是连续的
+ */
+public class SeckillKeys {
+
+    private SeckillKeys() {
+    }
+
+    public static String tag(long voucherId) {
+        return "{" + voucherId + "}";
+    }
+
+    /**
+     * 分片的hash tag，不分片时和券的一样
+     */
+    public static String tag(long voucherId, int shard, int shards) {
+        return shards > 1 ? "{" + voucherId + ":" + shard + "}" : tag(voucherId);
+    }
+
+    /**
+     * 库存分片的key，不分片时只有一个key
+     */
+    public static String stockKey(long voucherId, int shard, int shards) {
+        return RedisConstants.SECKILL_STOCK_KEY + tag(voucherId, shard, shards);
+    }
+
+    /**
+     * 所有库存分片的key，从first分片开始依次往后，各个分片不在同一个slot，只能分别访问
+     */
+    public static List<String> stockKeys(long voucherId, int shards, int first) {
+        int count = Math.max(shards, 1);
+        List<String> keys = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            keys.add(stockKey(voucherId, (first + i) % count, shards));
+        }
+        return keys;
+    }
+
+    /**
+     * 用户的主分片，秒杀脚本只扣这个分片的库存、查这个分片的下单记录
+     */
+    public static int homeShard(long userId, int shards) {
+        return shards > 1 ? (int) (userId % shards) : 0;
+    }
+
+    /**
+     * 下单记录的key，分片时每个分片一个
+     */
+    public static String orderKey(long voucherId, int shard, int shards) {
+        return RedisConstants.SECKILL_ORDER_KEY + tag(voucherId, shard, shards);
+    }
+
+    /**
+     * 用户的下单记录所在的key，集合编码时是主分片的集合，位图编码时是用户所在的位图块
+     */
+    public static String buyerKey(long voucherId, long userId, int shards, boolean bitmap) {
+        return bitmap ? chunkKey(voucherId, userId, shards) : orderKey(voucherId, homeShard(userId, shards), shards);
+    }
+
+    /**
+     * 用户所在的位图块的key
+     */
+    public static String chunkKey(long voucherId, long userId, int shards) {
+        return orderKey(voucherId, homeShard(userId, shards), shards) + RedisConstants.SECKILL_BITMAP_SUFFIX
+                + position(userId, shards) / RedisConstants.SECKILL_BITMAP_CHUNK_BITS;
+    }
+
+    /**
+     * 分片里写过的位图块的集合，秒杀脚本写位图块时一起记下来
+     */
+    public static String chunksKey(long voucherId, int shard, int shards) {
+        return orderKey(voucherId, shard, shards) + RedisConstants.SECKILL_BITMAP_CHUNKS_SUFFIX;
+    }
+
+    /**
+     * 用户在位图块里的偏移
+     */
+    public static long offset(long userId, int shards) {
+        return position(userId, shards) % RedisConstants.SECKILL_BITMAP_CHUNK_BITS;
+    }
+
+    private static long position(long userId, int shards) {
+        return shards > 1 ? userId / shards : userId;
+    }
+
+    /**
+     * 分片的订单消息队列，stream模式下秒杀脚本在扣库存的同时写入
+     */
+    public static String streamKey(long voucherId, int shard, int shards) {
+        return RedisConstants.SECKILL_STREAM_KEY + tag(voucherId, shard, shards);
+    }
+
+    /**
+     * 券的可购时间和单独的配置，限流的额度和它在同一个slot
+     */
+    public static String timeKey(long voucherId) {
+        return RedisConstants.SECKILL_TIME_KEY + tag(voucherId);
+    }
+
+    /**
+     * 分片里的可购时间，和分片的库存在同一个slot，不分片时就是券的可购时间
+     */
+    public static String timeKey(long voucherId, int shard, int shards) {
+        return RedisConstants.SECKILL_TIME_KEY + tag(voucherId, shard, shards);
+    }
+
+    /**
+     * 各个节点从这个分片租走的库存
+     */
+    public static String leaseKey(long voucherId, int shard, int shards) {
+        return RedisConstants.SECKILL_LEASE_KEY + tag(voucherId, shard, shards);
+    }
+
+    /**
+     * 分片的订单id号段，和分片的库存在同一个slot
+     */
+    public static String idKey(long voucherId, int shard, int shards) {
+        return RedisConstants.SECKILL_ID_KEY + tag(voucherId, shard, shards);
+    }
+
+    public static String budgetKey(long voucherId) {
+        return RedisConstants.SECKILL_BUDGET_KEY + tag(voucherId);
+    }
+}
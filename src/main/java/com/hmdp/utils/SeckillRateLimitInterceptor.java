@@ -0,0 +1,45 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import com.hmdp.dto.Result;
+import org.springframework.web.servlet.HandlerInterceptor;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+
+/**
+ * 秒杀接口的按券限流，放在最前面，被拒绝的请求不查登录信息也不执行秒杀脚本
+ */
+public class SeckillRateLimitInterceptor implements HandlerInterceptor {
+
+    private final SeckillRateLimiter seckillRateLimiter;
+
+    public SeckillRateLimitInterceptor(SeckillRateLimiter seckillRateLimiter) {
+        this.seckillRateLimiter = seckillRateLimiter;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) throws Exception {
+        Map<?, ?> variables = (Map<?, ?>) request.getAttribute(HandlerMapping.URI_TEMPLATE_VARIABLES_ATTRIBUTE);
+        Object id = variables == null ? null : variables.get("id");
+        if (id == null) {
+            return true;
+        }
+        Long voucherId;
+        try {
+            voucherId = Long.valueOf(id.toString());
+        } catch (NumberFormatException e) {
+            // 交给controller报参数错误
+            return true;
+        }
+        if (seckillRateLimiter.tryAcquire(voucherId)) {
+            return true;
+        }
+        response.setStatus(429);
+        response.setContentType("application/json;charset=UTF-8");
+        response.getWriter().write(JSONUtil.toJsonStr(Result.fail("活动太火爆，请稍后重试")));
+        return false;
+    }
+}
@@ -0,0 +1,298 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 秒杀请求的按券限流，每张券在本地有一个令牌桶，请求只在本地扣令牌，不访问Redis
+ * 令牌从Redis里的全局额度批量领取，额度每个窗口按剩余库存乘以系数生成，所有节点加起来放进来的请求和库存成比例
+ * 桶里的令牌不多时由后台线程去领，领不到就拒绝，直到下一个窗口
+ * 限流在登录之前，路径里的券id可以随便填，只给预热过的秒杀券建桶，桶的数量有上限，空闲的桶会被清理
+ * 卖完的券不限流，交给下单接口用本地售罄标记直接返回
+ */
+@Slf4j
+@Component
+public class SeckillRateLimiter {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    @Value("${hmdp.seckill.rate-limit.enabled:true}")
+    private boolean enabled;
+
+    // 每个窗口放进来的请求数是剩余库存的几倍，券可以单独配置
+    @Value("${hmdp.seckill.rate-limit.factor:3}")
+    private double factor;
+
+    // 全局额度的窗口(毫秒)
+    @Value("${hmdp.seckill.rate-limit.window-millis:1000}")
+    private long windowMillis;
+
+    // 一次从全局额度领取的令牌数，越大访问Redis越少，但节点之间越不均匀
+    @Value("${hmdp.seckill.rate-limit.chunk:50}")
+    private int chunk;
+
+    // 领不到令牌后多久再去领(毫秒)
+    @Value("${hmdp.seckill.rate-limit.retry-millis:100}")
+    private long retryMillis;
+
+    // 最多给多少张券建令牌桶，满了以后新的券不限流
+    @Value("${hmdp.seckill.rate-limit.max-vouchers:10000}")
+    private int maxVouchers;
+
+    // 令牌桶这么久(毫秒)没有请求，桶满时可以清理掉
+    private static final long BUCKET_IDLE_MILLIS = 60000;
+
+    // 券id -> 本地令牌桶
+    private final Map<Long, Bucket> buckets = new ConcurrentHashMap<>();
+
+    // 券id -> 正在去Redis确认的建桶任务，同一张券只有一个线程去确认，其他线程等它的结果
+    private final Map<Long, CompletableFuture<Bucket>> registering = new ConcurrentHashMap<>();
+
+    // 上次打印桶已满的时间戳
+    private volatile long fullWarnedAt;
+
+    private final ExecutorService refillExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "seckill-rate-limit");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static class Bucket {
+        // false表示不是预热过的秒杀券，请求直接放行，一个窗口后再去Redis确认
+        final boolean limited;
+        final AtomicLong tokens = new AtomicLong();
+        // 同一张券同时只有一个领取任务
+        final AtomicBoolean refilling = new AtomicBoolean();
+        // 全局额度用完了，这个时间之前不再去领
+        volatile long emptyUntil;
+        // 最近一次请求的时间戳，精确到秒
+        volatile long accessedAt = System.currentTimeMillis();
+
+        Bucket(boolean limited) {
+            this.limited = limited;
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        refillExecutor.shutdownNow();
+    }
+
+    /**
+     * 尝试放行一个秒杀请求，只操作本地的令牌桶
+     * @return false表示请求太多，直接拒绝
+     */
+    public boolean tryAcquire(Long voucherId) {
+        if (!enabled) {
+            return true;
+        }
+        long now = System.currentTimeMillis();
+        Bucket bucket = buckets.get(voucherId);
+        if (bucket == null || !bucket.limited && bucket.accessedAt + windowMillis < now) {
+            bucket = register(voucherId);
+            if (bucket == null) {
+                return true;
+            }
+        }
+        if (!bucket.limited) {
+            return true;
+        }
+        if (now - bucket.accessedAt >= 1000) {
+            bucket.accessedAt = now;
+        }
+        // 卖完的券放行，下单接口查到本地售罄标记直接返回
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return true;
+        }
+        while (true) {
+            long tokens = bucket.tokens.get();
+            if (tokens <= 0) {
+                refill(voucherId, bucket);
+                return false;
+            }
+            if (bucket.tokens.compareAndSet(tokens, tokens - 1)) {
+                // 剩一半时提前去领，不等用完
+                if (tokens - 1 <= chunk / 2) {
+                    refill(voucherId, bucket);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 单独配置一张券的系数，写在可购时间的hash里，所有节点下一个窗口生效
+     */
+    public void setFactor(Long voucherId, double factor) {
+        stringRedisTemplate.opsForHash().put(SeckillKeys.timeKey(voucherId), "rate-factor", String.valueOf(factor));
+    }
+
+    // 第一次收到这张券的请求，确认是预热过的秒杀券再建桶，同步领第一块令牌，不让第一批请求被拒绝
+    private Bucket register(Long voucherId) {
+        if (buckets.size() >= maxVouchers) {
+            evictIdle();
+            if (buckets.size() >= maxVouchers) {
+                // 满了说明有人在用大量不存在的券id请求，一分钟最多打一次日志
+                long now = System.currentTimeMillis();
+                if (now - fullWarnedAt >= BUCKET_IDLE_MILLIS) {
+                    fullWarnedAt = now;
+                    log.warn("秒杀限流的令牌桶已满{}个，券{}不限流", maxVouchers, voucherId);
+                }
+                return null;
+            }
+        }
+        // 同一张券只有一个线程去Redis确认，其他线程等它的结果；访问Redis不在map的锁里，不挡住其他券
+        CompletableFuture<Bucket> call = new CompletableFuture<>();
+        CompletableFuture<Bucket> existing = registering.putIfAbsent(voucherId, call);
+        if (existing != null) {
+            try {
+                return existing.get(windowMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | TimeoutException e) {
+                // 等不到就这一次不限流
+                return null;
+            }
+        }
+        try {
+            // 拿到任务之前别的线程可能刚建好
+            Bucket old = buckets.get(voucherId);
+            Bucket bucket = old != null && (old.limited || old.accessedAt + windowMillis >= System.currentTimeMillis())
+                    ? old
+                    : newBucket(voucherId);
+            if (bucket != old) {
+                buckets.put(voucherId, bucket);
+            }
+            call.complete(bucket);
+            return bucket;
+        } finally {
+            registering.remove(voucherId, call);
+        }
+    }
+
+    private Bucket newBucket(Long voucherId) {
+        try {
+            long stock = remainingStock(voucherId);
+            if (stock < 0) {
+                return new Bucket(false);
+            }
+            Bucket bucket = new Bucket(true);
+            long granted = grant(voucherId, stock);
+            if (granted > 0) {
+                bucket.tokens.set(granted);
+            } else {
+                bucket.emptyUntil = System.currentTimeMillis() + retryMillis;
+            }
+            return bucket;
+        } catch (Exception e) {
+            log.error("确认秒杀券{}失败", voucherId, e);
+            return new Bucket(false);
+        }
+    }
+
+    // 清理空闲的桶，不是秒杀券的过了一个窗口就清理
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        buckets.entrySet().removeIf(entry -> {
+            Bucket bucket = entry.getValue();
+            return bucket.accessedAt + (bucket.limited ? BUCKET_IDLE_MILLIS : windowMillis) < now;
+        });
+    }
+
+    // 从全局额度里领一块令牌，库存卖完时顺便标记售罄，之后的请求直接放行给下单接口
+    private long grant(Long voucherId, long stock) {
+        if (stock == 0) {
+            soldOutRegistry.markSoldOut(voucherId);
+        }
+        // 额度和券的可购时间在券的slot里，剩余库存分散在各个分片，先读出来传给脚本
+        Long granted = redisScripts.execute("seckill-budget", Long.class,
+                Arrays.asList(SeckillKeys.budgetKey(voucherId), SeckillKeys.timeKey(voucherId)),
+                String.valueOf(chunk),
+                String.valueOf(factor),
+                String.valueOf(windowMillis),
+                String.valueOf(stock));
+        return granted == null ? 0 : granted;
+    }
+
+    // 各个分片的库存加上节点租走还没卖掉的库存，券没有预热过返回-1
+    private long remainingStock(Long voucherId) {
+        int shards = Math.max(stockShards, 1);
+        List<Object> replies = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.exists(SeckillKeys.timeKey(voucherId));
+            for (int i = 0; i < shards; i++) {
+                stringConnection.get(SeckillKeys.stockKey(voucherId, i, stockShards));
+                stringConnection.hVals(SeckillKeys.leaseKey(voucherId, i, stockShards));
+            }
+            return null;
+        });
+        if (!Boolean.TRUE.equals(replies.get(0))) {
+            return -1;
+        }
+        long stock = 0;
+        for (int i = 1; i < replies.size(); i += 2) {
+            Object store = replies.get(i);
+            stock += store == null ? 0 : Long.parseLong((String) store);
+            for (Object amount : (List<?>) replies.get(i + 1)) {
+                stock += Math.max(Long.parseLong((String) amount), 0);
+            }
+        }
+        return Math.max(stock, 0);
+    }
+
+    private void refill(Long voucherId, Bucket bucket) {
+        if (System.currentTimeMillis() < bucket.emptyUntil || !bucket.refilling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            refillExecutor.execute(() -> {
+                try {
+                    long granted = grant(voucherId, Math.max(remainingStock(voucherId), 0));
+                    if (granted <= 0) {
+                        bucket.emptyUntil = System.currentTimeMillis() + retryMillis;
+                    } else {
+                        bucket.tokens.addAndGet(granted);
+                    }
+                } catch (Exception e) {
+                    log.error("领取秒杀令牌失败，券{}", voucherId, e);
+                    bucket.emptyUntil = System.currentTimeMillis() + retryMillis;
+                } finally {
+                    bucket.refilling.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            // 线程池已经关闭
+            bucket.refilling.set(false);
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 节点本地的秒杀库存租约，热门券的库存一次从Redis租一块，之后下单在本地用CAS扣减，不再访问Redis的库存key
+ * 租约按用户的主分片分开，租到的库存记在分片租约hash里节点id的field上，秒杀脚本下单时扣这个field，所以field就是节点还没卖掉的库存
+ * 一段时间没有再租的券把剩下的库存还给Redis，还完的租约从本地移除；活动结束后不再租，节点下线时全部归还
+ * 节点定时刷新心跳key，宕机后心跳过期，其他节点把它名下的field还回库存；被误判宕机的节点再下单时脚本返回5，本地的库存作废
+ */
+@Slf4j
+@Component
+public class SeckillStockLease {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    @Value("${hmdp.seckill.lease.enabled:false}")
+    private boolean enabled;
+
+    // 一次租的库存数
+    @Value("${hmdp.seckill.lease.chunk:50}")
+    private int chunk;
+
+    // 租约的有效期(秒)，这么久没有再租的券把剩下的库存还回去
+    @Value("${hmdp.seckill.lease.ttl-seconds:10}")
+    private long ttlSeconds;
+
+    // 心跳的有效期(秒)，这么久没有刷新心跳的节点当成宕机，租约被回收
+    @Value("${hmdp.seckill.lease.node-timeout-seconds:30}")
+    private long nodeTimeoutSeconds;
+
+    // 节点名，和消息队列的消费者名称一致
+    @Value("${hmdp.seckill.stream.consumer:c1}")
+    private String node;
+
+    // 节点id，节点名加上启动时生成的随机串，重启后是新的id，重启前的租约等心跳过期后回收
+    private String nodeId;
+
+    // 租约hash的key -> 租约，每张券每个分片一个
+    private final Map<String, Lease> leases = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService expireExecutor;
+
+    private static class Lease {
+        final String key;
+        final Long voucherId;
+        final int shard;
+        // 本地剩余的库存
+        final AtomicInteger stock = new AtomicInteger();
+        // 最近一次租库存的时间戳
+        volatile long leasedAt;
+        // 已经从本地移除，拿到它的线程要换成新的租约，只在锁里读写
+        boolean removed;
+
+        Lease(String key, Long voucherId, int shard) {
+            this.key = key;
+            this.voucherId = voucherId;
+            this.shard = shard;
+        }
+    }
+
+    @PostConstruct
+    private void init() {
+        nodeId = node + ":" + UUID.randomUUID();
+        if (!enabled) {
+            return;
+        }
+        heartbeat();
+        expireExecutor = Executors.newSingleThreadScheduledExecutor();
+        expireExecutor.scheduleWithFixedDelay(this::expire, 1, 1, TimeUnit.SECONDS);
+        expireExecutor.scheduleWithFixedDelay(this::reapLeased, nodeTimeoutSeconds, nodeTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (expireExecutor != null) {
+            expireExecutor.shutdownNow();
+        }
+        // 下线前把所有券的库存还回去
+        for (Lease lease : leases.values()) {
+            try {
+                giveBack(lease);
+            } catch (Exception e) {
+                log.error("归还券{}的库存租约失败", lease.voucherId, e);
+            }
+        }
+        if (enabled) {
+            stringRedisTemplate.delete(RedisConstants.SECKILL_LEASE_NODE_KEY + nodeId);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * 扣一个库存，本地没有了才去Redis租一块
+     * @param shard 用户的主分片，从这个分片租
+     * @return 0：扣到了；1：Redis里也没有库存了；4：活动已经结束，和秒杀脚本的返回值一致
+     */
+    public int acquire(Long voucherId, int shard) {
+        String key = SeckillKeys.leaseKey(voucherId, shard, stockShards);
+        while (true) {
+            Lease lease = leases.computeIfAbsent(key, k -> new Lease(k, voucherId, shard));
+            if (tryDecrement(lease)) {
+                return 0;
+            }
+            // 同一个租约同时只有一个线程去租，其他线程等它租完再扣
+            synchronized (lease) {
+                if (lease.removed) {
+                    // 刚被归还移除，换成新的租约
+                    continue;
+                }
+                if (tryDecrement(lease)) {
+                    return 0;
+                }
+                // 主分片卖完了从其他分片调过来再租，都没有了先回收宕机节点的租约再试一次
+                long granted = leaseOrBorrow(lease);
+                if (granted == 0 && reap(voucherId) > 0) {
+                    granted = leaseOrBorrow(lease);
+                }
+                if (granted <= 0) {
+                    // 本地和Redis都没有库存了，或者活动已经结束，租约不用留着
+                    remove(lease);
+                    return granted < 0 ? 4 : 1;
+                }
+                lease.leasedAt = System.currentTimeMillis();
+                // 自己用掉一个
+                lease.stock.addAndGet((int) granted - 1);
+                return 0;
+            }
+        }
+    }
+
+    private long leaseOrBorrow(Lease lease) {
+        long granted = lease(lease);
+        if (granted == 0 && seckillStockShards.borrow(lease.voucherId, lease.shard) > 0) {
+            granted = lease(lease);
+        }
+        return granted;
+    }
+
+    // 返回租到的库存数，0表示卖完了，-1表示活动已经结束
+    private long lease(Lease lease) {
+        Long granted = redisScripts.execute("seckill-lease", Long.class,
+                Arrays.asList(lease.key,
+                        SeckillKeys.stockKey(lease.voucherId, lease.shard, stockShards),
+                        SeckillKeys.timeKey(lease.voucherId, lease.shard, stockShards)),
+                String.valueOf(chunk),
+                nodeId,
+                String.valueOf(System.currentTimeMillis()));
+        return granted == null ? 0 : granted;
+    }
+
+    /**
+     * 扣了库存但没有下单成功，比如重复下单、不在可购时间内，库存放回本地
+     * 租约已经归还移除时直接还给Redis
+     */
+    public void release(Long voucherId, int shard) {
+        String key = SeckillKeys.leaseKey(voucherId, shard, stockShards);
+        Lease lease = leases.get(key);
+        if (lease != null) {
+            synchronized (lease) {
+                if (!lease.removed) {
+                    lease.stock.incrementAndGet();
+                    return;
+                }
+            }
+        }
+        returnStock(key, voucherId, shard, 1);
+    }
+
+    /**
+     * 秒杀脚本返回5，节点在Redis里的租约已经没有了，本地剩下的库存作废
+     * 租库存和这里都锁租约，锁里查到field还在说明其他线程刚租到新的一块，不能清零
+     */
+    public void revoke(Long voucherId, int shard) {
+        Lease lease = leases.get(SeckillKeys.leaseKey(voucherId, shard, stockShards));
+        if (lease == null) {
+            return;
+        }
+        synchronized (lease) {
+            Object left = stringRedisTemplate.opsForHash().get(SeckillKeys.leaseKey(voucherId, shard, stockShards), nodeId);
+            if (left == null || Long.parseLong(left.toString()) <= 0) {
+                int dropped = lease.stock.getAndSet(0);
+                log.warn("券{}分片{}的租约已被回收，作废本地库存{}", voucherId, shard, dropped);
+            }
+        }
+    }
+
+    /**
+     * 回收心跳已经过期的节点在这张券各个分片上的租约，库存还回对应的分片
+     * @return 还回去的库存数
+     */
+    public long reap(Long voucherId) {
+        long reaped = 0;
+        for (int i = 0; i < Math.max(stockShards, 1); i++) {
+            String leaseKey = SeckillKeys.leaseKey(voucherId, i, stockShards);
+            List<String> nodeIds = new ArrayList<>();
+            for (Object field : stringRedisTemplate.opsForHash().keys(leaseKey)) {
+                nodeIds.add(field.toString());
+            }
+            if (nodeIds.isEmpty()) {
+                continue;
+            }
+            Set<String> alive = aliveNodes(nodeIds);
+            nodeIds.removeAll(alive);
+            if (nodeIds.isEmpty()) {
+                continue;
+            }
+            Long returned = redisScripts.execute("seckill-lease-reap", Long.class,
+                    Arrays.asList(leaseKey, SeckillKeys.stockKey(voucherId, i, stockShards)),
+                    nodeIds.toArray());
+            if (returned != null && returned > 0) {
+                log.warn("回收券{}分片{}上宕机节点{}的租约，库存{}", voucherId, i, nodeIds, returned);
+                reaped += returned;
+            }
+        }
+        if (reaped > 0) {
+            soldOutRegistry.replenished(voucherId);
+        }
+        return reaped;
+    }
+
+    /**
+     * 心跳还在的节点
+     */
+    public Set<String> aliveNodes(Collection<String> nodeIds) {
+        List<String> ids = new ArrayList<>(nodeIds);
+        List<Object> exists = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            for (String id : ids) {
+                stringConnection.exists(RedisConstants.SECKILL_LEASE_NODE_KEY + id);
+            }
+            return null;
+        });
+        Set<String> alive = new HashSet<>();
+        for (int i = 0; i < ids.size(); i++) {
+            if (Boolean.TRUE.equals(exists.get(i))) {
+                alive.add(ids.get(i));
+            }
+        }
+        return alive;
+    }
+
+    private static boolean tryDecrement(Lease lease) {
+        while (true) {
+            int stock = lease.stock.get();
+            if (stock <= 0) {
+                return false;
+            }
+            if (lease.stock.compareAndSet(stock, stock - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void heartbeat() {
+        stringRedisTemplate.opsForValue().set(RedisConstants.SECKILL_LEASE_NODE_KEY + nodeId, node, nodeTimeoutSeconds, TimeUnit.SECONDS);
+    }
+
+    // 刷新心跳，归还过期的租约，还完的从本地移除，活动结束的券过期后不会再租
+    private void expire() {
+        try {
+            heartbeat();
+            long expireBefore = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(ttlSeconds);
+            for (Lease lease : leases.values()) {
+                if (lease.leasedAt >= expireBefore) {
+                    continue;
+                }
+                synchronized (lease) {
+                    giveBack(lease);
+                    if (lease.stock.get() == 0) {
+                        remove(lease);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("归还秒杀库存租约失败", e);
+        }
+    }
+
+    // 在租约的锁里调用，之后拿到这个租约的线程会换成新的
+    private void remove(Lease lease) {
+        lease.removed = true;
+        leases.remove(lease.key, lease);
+    }
+
+    // 定时回收本节点租过的券上宕机节点的租约，其他券在租不到库存时回收
+    private void reapLeased() {
+        Set<Long> voucherIds = new HashSet<>();
+        for (Lease lease : leases.values()) {
+            voucherIds.add(lease.voucherId);
+        }
+        for (Long voucherId : voucherIds) {
+            try {
+                reap(voucherId);
+            } catch (Exception e) {
+                log.error("回收券{}宕机节点的租约失败", voucherId, e);
+            }
+        }
+    }
+
+    private void giveBack(Lease lease) {
+        // 先清零本地库存，之后的下单会去重新租
+        int stock = lease.stock.getAndSet(0);
+        if (stock <= 0) {
+            return;
+        }
+        try {
+            returnStock(lease.key, lease.voucherId, lease.shard, stock);
+        } catch (Exception e) {
+            // 没还回去就放回本地，下次过期时再还
+            lease.stock.addAndGet(stock);
+            throw e;
+        }
+    }
+
+    private void returnStock(String leaseKey, Long voucherId, int shard, int stock) {
+        Long returned = redisScripts.execute("seckill-lease-return", Long.class,
+                Arrays.asList(leaseKey, SeckillKeys.stockKey(voucherId, shard, stockShards)),
+                String.valueOf(stock),
+                nodeId);
+        if (returned != null && returned > 0) {
+            // 其他节点可能已经标记了售罄
+            soldOutRegistry.replenished(voucherId);
+        }
+    }
+}
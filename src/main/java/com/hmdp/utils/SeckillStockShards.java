@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Collections;
+
+/**
+ * 库存分片之间的调拨，分片时每个分片在不同的slot，秒杀脚本只看用户主分片的库存
+ * 主分片卖完了从后面的分片调一半库存过来，所有分片都调不出来才算卖完
+ */
+@Component
+public class SeckillStockShards {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisScripts redisScripts;
+
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    /**
+     * 从其他分片给shard分片调库存
+     * @return 调过来的库存数，0表示其他分片也没有库存了，不分片时总是0
+     */
+    public long borrow(Long voucherId, int shard) {
+        for (int i = 1; i < stockShards; i++) {
+            int from = (shard + i) % stockShards;
+            Long moved = redisScripts.execute("seckill-borrow", Long.class,
+                    Collections.singletonList(SeckillKeys.stockKey(voucherId, from, stockShards)));
+            if (moved != null && moved > 0) {
+                stringRedisTemplate.opsForValue().increment(SeckillKeys.stockKey(voucherId, shard, stockShards), moved);
+                return moved;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * 合并同一个JVM里对同一个key的并发调用，只有第一个线程真正执行，其他线程等它的结果
+ * 缓存重建时只有这个线程去抢分布式锁和查数据库，其他线程不再轮询Redis
+ */
+public class SingleFlight {
+
+    // key -> 正在执行的调用
+    private final Map<String, CompletableFuture<Object>> calls = new ConcurrentHashMap<>();
+
+    /**
+     * 执行或者等待正在执行的同一个key的调用
+     * @param timeout 等待别的线程的最长时间，超时抛异常
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Supplier<T> supplier, long timeout, TimeUnit timeUnit) {
+        CompletableFuture<Object> call = new CompletableFuture<>();
+        CompletableFuture<Object> existing = calls.putIfAbsent(key, call);
+        if (existing != null) {
+            return (T) await(existing, timeout, timeUnit);
+        }
+        try {
+            T result = supplier.get();
+            call.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            call.completeExceptionally(e);
+            throw e;
+        } finally {
+            // 执行完就移除，之后的调用重新执行，不缓存结果
+            calls.remove(key, call);
+        }
+    }
+
+    /**
+     * 正在执行的调用数
+     */
+    public int inFlight() {
+        return calls.size();
+    }
+
+    private static Object await(CompletableFuture<Object> call, long timeout, TimeUnit timeUnit) {
+        try {
+            return call.get(timeout, timeUnit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        } catch (TimeoutException e) {
+            throw new RuntimeException("等待缓存重建超时", e);
+        }
+    }
+}
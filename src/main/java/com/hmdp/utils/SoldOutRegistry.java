@@ -0,0 +1,85 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地售罄标记，券卖完后直接在JVM里拒绝，不用再去Redis执行秒杀脚本
+ * 库存补回时通过Redis发布订阅通知所有节点清除标记
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    // 标记的有效期，漏收了补库存的消息也能在有效期后恢复
+    @Value("${hmdp.seckill.sold-out-ttl:10}")
+    private long soldOutTtl;
+
+    // 券id -> 标记过期的时间戳
+    private final Map<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    private void init() {
+        redisMessageListenerContainer.addMessageListener(this, new ChannelTopic(RedisConstants.SECKILL_REPLENISH_CHANNEL));
+    }
+
+    /**
+     * 是否已经卖完
+     */
+    public boolean isSoldOut(Long voucherId) {
+        Long expireTime = soldOut.get(voucherId);
+        if (expireTime == null) {
+            return false;
+        }
+        if (expireTime < System.currentTimeMillis()) {
+            // 过期了，让下一个请求去Redis确认
+            soldOut.remove(voucherId, expireTime);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 秒杀脚本返回库存不足时标记售罄
+     */
+    public void markSoldOut(Long voucherId) {
+        soldOut.put(voucherId, System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(soldOutTtl));
+    }
+
+    /**
+     * Redis库存补回后调用，通知所有节点清除售罄标记
+     */
+    public void replenished(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(RedisConstants.SECKILL_REPLENISH_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String voucherId = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            soldOut.remove(Long.valueOf(voucherId));
+        } catch (NumberFormatException e) {
+            log.error("补库存消息格式错误：{}", voucherId);
+        }
+    }
+}
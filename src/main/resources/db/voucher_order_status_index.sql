@@ -0,0 +1,8 @@
+-- ----------------------------
+-- tb_voucher_order 库存对账按券统计没取消的订单数，已有的库执行这个脚本，新库直接用hmdp.sql
+-- SELECT voucher_id, COUNT(*) FROM tb_voucher_order WHERE voucher_id IN (...) AND status <> 4 GROUP BY voucher_id
+-- 唯一索引的第一列是user_id，用不上，没有这个索引时每次对账都是全表扫描
+-- ----------------------------
+
+ALTER TABLE `tb_voucher_order`
+  ADD INDEX `idx_voucher_status`(`voucher_id`, `status`) USING BTREE;
@@ -0,0 +1,11 @@
+-- ----------------------------
+-- tb_voucher_order 超时取消的订单记下Redis库存是否已经还回去，已有的库执行这个脚本，新库直接用hmdp.sql
+-- 取消订单的事务提交后才还Redis库存，中间宕机时重新取出的订单靠这个字段找到还没还库存的
+-- ----------------------------
+
+-- 1. 增加stock_returned字段
+ALTER TABLE `tb_voucher_order`
+  ADD COLUMN `stock_returned` tinyint(1) UNSIGNED NOT NULL DEFAULT 0 COMMENT '取消后Redis里的库存是否已经还回去，0：还没还；1：已还' AFTER `cancel_id`;
+
+-- 2. 已经取消的订单当成已还
+UPDATE `tb_voucher_order` SET `stock_returned` = 1 WHERE `status` = 4;
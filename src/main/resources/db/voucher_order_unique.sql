@@ -0,0 +1,18 @@
+-- ----------------------------
+-- tb_voucher_order 一人一单改由唯一索引保证，已有的库执行这个脚本，新库直接用hmdp.sql
+-- 取消的订单cancel_id等于订单id，不占用唯一索引，用户可以重新抢；未取消的订单cancel_id为0，同一个用户同一张券只能有一个
+-- ----------------------------
+
+-- 1. 增加cancel_id字段
+ALTER TABLE `tb_voucher_order`
+  ADD COLUMN `cancel_id` bigint(20) NOT NULL DEFAULT 0 COMMENT '取消的订单等于订单id，未取消的为0' AFTER `status`;
+
+-- 2. 已取消的订单不参与一人一单
+UPDATE `tb_voucher_order` SET `cancel_id` = `id` WHERE `status` = 4;
+
+-- 3. 建索引前确认没有重复的订单，下面的查询有结果时要先处理掉
+-- SELECT `user_id`, `voucher_id`, COUNT(*) FROM `tb_voucher_order` WHERE `cancel_id` = 0 GROUP BY `user_id`, `voucher_id` HAVING COUNT(*) > 1;
+
+-- 4. 增加唯一索引
+ALTER TABLE `tb_voucher_order`
+  ADD UNIQUE INDEX `uk_user_voucher`(`user_id`, `voucher_id`, `cancel_id`) USING BTREE;
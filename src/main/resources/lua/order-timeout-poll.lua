@@ -0,0 +1,15 @@
+-- 取出到期的未支付订单，到期时间推迟一个租期再返回，处理完后由调用方删除
+-- 节点在处理中途宕机时，租期过后其他节点还能取到这些订单
+local key = KEYS[1]
+-- 当前时间戳(毫秒)
+local now = ARGV[1]
+-- 一次最多取的订单数
+local count = ARGV[2]
+-- 租期到期的时间戳(毫秒)
+local leaseUntil = ARGV[3]
+
+local orderIds = redis.call('zrangebyscore', key, '-inf', now, 'limit', 0, count)
+for i = 1, #orderIds do
+    redis.call('zadd', key, leaseUntil, orderIds[i])
+end
+return orderIds
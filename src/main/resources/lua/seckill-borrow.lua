@@ -0,0 +1,13 @@
+-- 分片库存调拨的第一步，从一个分片拿走一半库存，由java加到卖完的分片上
+-- 两个分片不在同一个slot，不能在一个脚本里完成，中间节点宕机时拿走的库存由库存对账发现
+-- KEYS[1]：调出库存的分片
+local stockKey = KEYS[1]
+
+local store = tonumber(redis.call('get', stockKey))
+if (store == nil or store <= 0) then
+    return 0
+end
+-- 拿走一半，向上取整，只剩1个时也能调走
+local take = math.ceil(store / 2)
+redis.call('incrby', stockKey, -take)
+return take
@@ -0,0 +1,27 @@
+-- 从全局的请求额度里给一个节点分配令牌，额度每个窗口按剩余库存乘以系数重新生成
+-- KEYS[1]：额度
+-- KEYS[2]：券的可购时间的hash，券单独配置的系数放在这里
+local budgetKey = KEYS[1]
+
+-- 一次最多分配的令牌数
+local chunk = tonumber(ARGV[1])
+-- 券没有单独配置时的系数
+local defaultFactor = tonumber(ARGV[2])
+-- 额度的窗口(毫秒)
+local window = ARGV[3]
+-- 剩余库存，各个分片的库存加上节点租走还没卖掉的，分片不在同一个slot，由java读好传入
+local stock = tonumber(ARGV[4])
+
+if (redis.call('exists', budgetKey) == 0) then
+    -- 新窗口，按剩余库存生成额度
+    local factor = tonumber(redis.call('hget', KEYS[2], 'rate-factor')) or defaultFactor
+    local budget = math.ceil(math.max(stock, 0) * factor)
+    redis.call('set', budgetKey, budget, 'px', window)
+end
+
+local left = tonumber(redis.call('get', budgetKey))
+local granted = math.min(chunk, left)
+if (granted > 0) then
+    redis.call('decrby', budgetKey, granted)
+end
+return granted
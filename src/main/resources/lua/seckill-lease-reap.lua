@@ -0,0 +1,18 @@
+-- 回收宕机节点的租约，节点的心跳过期后由其他节点调用，把它租走还没卖掉的库存还给分片
+-- KEYS[1]：各个节点从这个分片租走还没卖掉的库存
+-- KEYS[2]：租约所在分片的库存
+local leaseKey = KEYS[1]
+local stockKey = KEYS[2]
+
+-- ARGV：心跳已经过期的节点id
+local reaped = 0
+for i = 1, #ARGV do
+    local left = tonumber(redis.call('hget', leaseKey, ARGV[i]))
+    if (left ~= nil and left > 0) then
+        redis.call('incrby', stockKey, left)
+        reaped = reaped + left
+    end
+    redis.call('hdel', leaseKey, ARGV[i])
+end
+-- 返回还回去的库存数
+return reaped
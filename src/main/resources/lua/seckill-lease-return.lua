@@ -0,0 +1,24 @@
+-- 节点把没卖掉的库存还给Redis，租约过期和节点下线时调用
+-- KEYS[1]：各个节点从这个分片租走还没卖掉的库存
+-- KEYS[2]：租约所在分片的库存
+local leaseKey = KEYS[1]
+local stockKey = KEYS[2]
+
+-- 节点本地剩余的库存数
+local amount = tonumber(ARGV[1])
+-- 节点id
+local node = ARGV[2]
+
+-- 最多还租约里记着的数量，租约已经被当成宕机节点回收时不能再还一次
+local left = tonumber(redis.call('hget', leaseKey, node)) or 0
+amount = math.min(amount, left)
+if (amount > 0) then
+    redis.call('incrby', stockKey, amount)
+end
+if (left - amount <= 0) then
+    redis.call('hdel', leaseKey, node)
+else
+    redis.call('hincrby', leaseKey, node, -amount)
+end
+-- 返回实际还回去的库存数
+return math.max(amount, 0)
@@ -0,0 +1,33 @@
+-- 节点从Redis的库存里租一块库存，之后在本地扣减，一次调用摊到一整块库存上
+-- KEYS[1]：各个节点从这个分片租走还没卖掉的库存
+-- KEYS[2]：分片的库存，不够一块时有多少租多少
+-- KEYS[3]：分片里的可购时间，活动结束后不再租
+local leaseKey = KEYS[1]
+local stockKey = KEYS[2]
+local timeKey = KEYS[3]
+
+-- 一次最多租的库存数
+local chunk = tonumber(ARGV[1])
+-- 节点id
+local node = ARGV[2]
+-- 当前时间戳(毫秒)
+local now = tonumber(ARGV[3])
+
+local endTime = redis.call('hget', timeKey, 'end')
+if (endTime and now > tonumber(endTime)) then
+    -- 活动已经结束
+    return -1
+end
+
+local granted = 0
+local store = tonumber(redis.call('get', stockKey))
+if (store ~= nil and store > 0) then
+    granted = math.min(store, chunk)
+    redis.call('incrby', stockKey, -granted)
+end
+
+if (granted > 0) then
+    redis.call('hincrby', leaseKey, node, granted)
+end
+-- 返回租到的库存数，0表示卖完了
+return granted
@@ -0,0 +1,36 @@
+-- 重放死信订单前重新占用库存和下单记录，补偿时已经撤销过了
+-- KEYS[1]：用户的下单记录，集合或位图块
+-- KEYS[2]：用户主分片的库存
+-- KEYS[3]：主分片写过的位图块，位图编码时用
+local orderKey = KEYS[1]
+local stockKey = KEYS[2]
+local chunksKey = KEYS[3]
+
+local userId = ARGV[1]
+-- 位图编码时用户在位图块里的偏移，集合编码时为空
+local offset = ARGV[2]
+
+local bought
+if (offset ~= '') then
+    bought = redis.call('getbit', orderKey, offset) == 1
+else
+    bought = redis.call('sismember', orderKey, userId) == 1
+end
+if (bought) then
+    -- 用户已经重新下过单，返回2
+    return 2
+end
+
+local store = tonumber(redis.call('get', stockKey))
+if (store == nil or store <= 0) then
+    -- 库存不足返回1
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+if (offset ~= '') then
+    redis.call('setbit', orderKey, offset, 1)
+    redis.call('sadd', chunksKey, orderKey)
+else
+    redis.call('sadd', orderKey, userId)
+end
+return 0
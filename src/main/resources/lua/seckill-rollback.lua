@@ -0,0 +1,31 @@
+-- 撤销秒杀脚本里扣的库存和下单记录，死信订单补偿和超时订单取消时用
+-- KEYS[1]：库存，分片时是用户的主分片，不知道当时从哪个分片扣的库存，补回主分片
+-- KEYS[2]：用户的下单记录，集合或位图块
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+
+local userId = ARGV[1]
+-- 位图编码时用户在位图块里的偏移，集合编码时为空
+local offset = ARGV[2]
+-- 1：把用户从下单记录里移除；0：重复下单时用户确实买过，不能移除
+local remove = ARGV[3] == '1'
+-- 1：补回库存；0：数据库已经没有库存了，补回去只会让下一个用户再失败一次
+local restock = ARGV[4] == '1'
+
+if (remove) then
+    local removed
+    if (offset ~= '') then
+        removed = redis.call('setbit', orderKey, offset, 0) == 1
+    else
+        removed = redis.call('srem', orderKey, userId) == 1
+    end
+    if (not removed) then
+        -- 用户不在下单记录里，已经补偿过了，不再补库存
+        return 0
+    end
+end
+if (not restock) then
+    return 0
+end
+redis.call('incrby', stockKey, 1)
+return 1
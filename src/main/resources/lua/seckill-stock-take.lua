@@ -0,0 +1,16 @@
+-- 库存对账修正时从一个分片扣库存，最多扣到0，不让用户的主分片变成负数被当成售罄
+-- 各个分片不在同一个slot，由java逐个分片调用
+-- KEYS[1]：分片的库存
+local stockKey = KEYS[1]
+
+-- 要扣的库存数
+local amount = tonumber(ARGV[1])
+
+local store = tonumber(redis.call('get', stockKey))
+if (store == nil or store <= 0) then
+    return 0
+end
+local take = math.min(amount, store)
+redis.call('incrby', stockKey, -take)
+-- 返回实际扣掉的库存数
+return take
@@ -1,24 +1,109 @@
+-- 秒杀脚本，用到的key都由java算好通过KEYS传入，都是用户主分片里的key，在集群里落在同一个slot
+-- KEYS[1]：可购时间的hash
+-- KEYS[2]：用户的下单记录，集合编码时是主分片的集合，位图编码时是用户所在的位图块
+-- KEYS[3]：主分片的库存，主分片卖完了由java从其他分片调过来再重新执行
+-- KEYS[4]：各个节点从主分片租走的库存，开启库存租约时用
+-- KEYS[5]：主分片写过的位图块，位图编码时用
+-- KEYS[6]：主分片的订单id号段，hash的day、next、end字段，号段由java从RedisIdWorker的序列号里领取
+-- KEYS[7]：消息队列，没有时下单信息由JVM阻塞队列处理
+local timeKey = KEYS[1]
+local orderKey = KEYS[2]
+local stockKey = KEYS[3]
+local leaseKey = KEYS[4]
+local chunksKey = KEYS[5]
+local idKey = KEYS[6]
+local streamKey = KEYS[7]
+
 local voucherId = ARGV[1]
 local userId = ARGV[2]
+-- 订单id序列号所属的那一天，RedisIdWorker.countKeyOf，号段不是这一天领的就不能用
+local idDay = ARGV[3]
+-- 当前时间戳(毫秒)
+local now = tonumber(ARGV[4])
+-- 位图编码时用户在位图块里的偏移，集合编码时为空
+local offset = ARGV[5]
+-- 1：节点已经从租到的库存里扣过了，脚本不再扣Redis里的库存，改扣节点的租约
+local leased = ARGV[6] == '1'
+-- 节点id，开启库存租约时用
+local node = ARGV[7]
+-- 订单id的时间戳部分，RedisIdWorker.timestampOf
+local idTimestamp = tonumber(ARGV[8])
 
-local storeKey = 'seckill:stock:' .. voucherId -- lua的..相当于java的+
-local orderId = 'seckill:order:' .. voucherId
+-- 拼出64位订单id：timestamp << 32 | count，和RedisIdWorker的格式一致
+-- lua的数字是double，超过2^53会丢精度，所以按10^6分成高低两段计算，最后拼成十进制字符串
+local function composeId(timestamp, count)
+    -- 2^32 = 4294 * 10^6 + 967296
+    local low = timestamp * 967296 + count
+    local high = timestamp * 4294 + math.floor(low / 1000000)
+    low = low % 1000000
+    if (high == 0) then
+        return string.format('%d', low)
+    end
+    return string.format('%d%06d', high, low)
+end
 
-local store = tonumber(redis.call('get', storeKey))
-if (store <= 0) then
-    -- 库存不足返回1
-    return 1
+-- 判断是否在可购时间内，没有预热时间的券不限制
+local times = redis.call('hmget', timeKey, 'begin', 'end')
+if (times[1] and now < tonumber(times[1])) then
+    -- 未开始返回3
+    return {3}
+end
+if (times[2] and now > tonumber(times[2])) then
+    -- 已结束返回4
+    return {4}
 end
 
--- SISMEMBER orderKey userId查看用户是否下过单
-if (redis.call('sismember', orderId, userId) == 1) then
+-- 查看用户是否下过单，集合编码时是SISMEMBER orderKey userId
+local bought
+if (offset ~= '') then
+    bought = redis.call('getbit', orderKey, offset) == 1
+else
+    bought = redis.call('sismember', orderKey, userId) == 1
+end
+if (bought) then
     -- 存在，说明重复下单，返回2
-    return 2
+    return {2}
+end
+
+-- 号段用完了或者换天了，返回6，java领一个新号段再重新执行，这时还没有扣库存
+local segment = redis.call('hmget', idKey, 'day', 'next', 'end')
+local count = tonumber(segment[2])
+if (segment[1] ~= idDay or count == nil or count > tonumber(segment[3])) then
+    return {6}
 end
 
--- 扣减库存
-redis.call('incrby', storeKey, -1)
+if (leased) then
+    local left = tonumber(redis.call('hget', leaseKey, node))
+    if (left == nil or left <= 0) then
+        -- 节点的租约已经被当成宕机节点回收了，本地扣的库存作废，返回5
+        return {5}
+    end
+    -- 租约里记的是节点还没卖掉的库存
+    redis.call('hincrby', leaseKey, node, -1)
+else
+    local store = tonumber(redis.call('get', stockKey))
+    if (store == nil or store <= 0) then
+        -- 主分片没有库存，返回1
+        return {1}
+    end
+    -- 扣减库存
+    redis.call('incrby', stockKey, -1)
+end
 
--- 下单
-redis.call('sadd', orderId, userId)
-return 0;
+-- 下单，从号段里分配订单id
+redis.call('hincrby', idKey, 'next', 1)
+local orderId = composeId(idTimestamp, count)
+if (offset ~= '') then
+    redis.call('setbit', orderKey, offset, 1)
+    -- 记下写过的位图块，对账时不用SCAN
+    redis.call('sadd', chunksKey, orderKey)
+else
+    redis.call('sadd', orderKey, userId)
+end
+
+-- 发送消息到主分片的队列中，和扣库存在同一个脚本里，保证原子性，XADD stream.orders:{id} * k1 v1 k2 v2 ...
+if (streamKey ~= nil) then
+    redis.call('xadd', streamKey, '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+-- 成功返回0和订单id
+return {0, orderId}
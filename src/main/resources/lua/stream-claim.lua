@@ -0,0 +1,22 @@
+-- 消息队列的key
+local key = KEYS[1]
+-- 消费者组
+local group = ARGV[1]
+-- 认领消息的消费者
+local consumer = ARGV[2]
+-- 最小空闲时间(毫秒)，超过这个时间还没确认的消息才认领，避免抢走正在处理的消息
+local minIdle = tonumber(ARGV[3])
+-- 单次最多检查的消息数
+local count = ARGV[4]
+
+-- XPENDING key group - + count，返回 {id, consumer, idle, deliveredTimes}
+local pending = redis.call('xpending', key, group, '-', '+', count)
+local claimed = 0
+for _, entry in ipairs(pending) do
+    if (entry[2] ~= consumer and tonumber(entry[3]) >= minIdle) then
+        -- 转移到当前消费者的pending-list，后续由当前消费者重新处理
+        redis.call('xclaim', key, group, consumer, minIdle, entry[1], 'JUSTID')
+        claimed = claimed + 1
+    end
+end
+return claimed
@@ -8,7 +8,13 @@ import org.springframework.boot.test.context.SpringBootTest;
 
 import javax.annotation.Resource;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -27,4 +33,38 @@ class ShopServiceImplTest {
 
         cacheClient.setWithLogicalExpire(RedisConstants.CACHE_SHOP_KEY + 1L, shop, 1L, TimeUnit.SECONDS);
     }
-}
\ No newline at end of file
+
+    @Test
+    void testQueryBatch() {
+        // 用测试专用的key前缀，不碰共用Redis里真实的商铺缓存；前缀没有布隆过滤器和本地缓存，只测Redis和数据库两层
+        String keyPrefix = "test:cache:batch:";
+        List<Long> ids = Arrays.asList(1L, 2L, 3L, 3L, -1L);
+        ids.forEach(id -> cacheClient.delete(keyPrefix + id));
+        int[] dbQueries = {0};
+        // 模拟数据库：只有正数id存在
+        Function<Collection<Long>, Map<Long, Shop>> dbFallback = missIds -> {
+            dbQueries[0]++;
+            return missIds.stream()
+                    .filter(id -> id > 0)
+                    .collect(Collectors.toMap(id -> id, id -> new Shop().setId(id).setName("shop-" + id)));
+        };
+
+        try {
+            // 第一次全部没有缓存，只查一次数据库，不存在的id不在结果里
+            Map<Long, Shop> shops = cacheClient.queryBatch(keyPrefix, ids, Shop.class, dbFallback,
+                    RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            assertEquals(1, dbQueries[0]);
+            assertEquals(Arrays.asList(1L, 2L, 3L), shops.keySet().stream().sorted().collect(Collectors.toList()));
+            assertEquals("shop-2", shops.get(2L).getName());
+
+            // 第二次全部命中缓存，包括缓存的空值
+            Map<Long, Shop> cached = cacheClient.queryBatch(keyPrefix, ids, Shop.class, dbFallback,
+                    RedisConstants.CACHE_SHOP_TTL, TimeUnit.MINUTES);
+            assertEquals(1, dbQueries[0]);
+            assertEquals(shops.keySet(), cached.keySet());
+            assertEquals("shop-2", cached.get(2L).getName());
+        } finally {
+            ids.forEach(id -> cacheClient.delete(keyPrefix + id));
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.dto.Result;
+import com.hmdp.dto.StockDriftDTO;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Voucher;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.RedisConstants;
+import com.hmdp.utils.SeckillKeys;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.boot.test.web.client.TestRestTemplate;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.ResponseEntity;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+import redis.embedded.RedisServer;
+
+import javax.annotation.Resource;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 秒杀并发测试，启动整个应用，数据库用H2、Redis用内嵌Redis，不需要部署环境和tokens.txt
+ * 大量虚拟用户并发抢同一张券，每个用户请求多次，结束后检查：不超卖、同一用户不重复下单、Redis和数据库的库存一致
+ * 并输出吞吐量和延迟，规模通过系统属性调整，例如 -Dharness.users=20000 -Dharness.threads=400
+ * 请求顺序由随机种子决定，-Dharness.seed固定后每次发出的请求序列相同
+ * 跑一次要一分钟左右，默认的mvn test不跑，用 mvn test -Pslow-tests -Dtest=VoucherOrderConcurrencyTest 单独跑
+ */
+@SpringBootTest(webEnvironment = SpringBootTest.WebEnvironment.RANDOM_PORT)
+@ActiveProfiles("harness")
+@Tag("slow")
+// 应用连的是本类启动的内嵌Redis，跑完就关闭，不留给其他测试类复用
+@DirtiesContext
+class VoucherOrderConcurrencyTest {
+
+    // 虚拟用户数
+    private static final int USERS = Integer.getInteger("harness.users", 5000);
+    // 券的库存，比用户数少才能测到售罄
+    private static final int STOCK = Integer.getInteger("harness.stock", 1000);
+    // 每个用户的请求次数，大于1时测重复下单
+    private static final int REQUESTS_PER_USER = Integer.getInteger("harness.requests-per-user", 2);
+    // 并发发请求的线程数
+    private static final int THREADS = Integer.getInteger("harness.threads", 200);
+    private static final long SEED = Long.getLong("harness.seed", 20221204L);
+    // 虚拟用户的id从这里开始，不和真实用户冲突
+    private static final long USER_ID_BASE = 1_000_000_000L;
+
+    private static final RedisServer REDIS_SERVER;
+    private static final int REDIS_PORT;
+
+    static {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            REDIS_PORT = socket.getLocalPort();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            REDIS_SERVER = new RedisServer(REDIS_PORT);
+            REDIS_SERVER.start();
+        } catch (IOException e) {
+            throw new RuntimeException("启动内嵌Redis失败", e);
+        }
+        // @AfterAll在@DirtiesContext关闭应用之前执行，那时停Redis，订单处理线程退出前会连已经停掉的Redis
+        // 所以等JVM退出时再停，这时应用已经关闭了
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                REDIS_SERVER.stop();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }));
+    }
+
+    @DynamicPropertySource
+    static void redisProperties(DynamicPropertyRegistry registry) {
+        registry.add("spring.redis.port", () -> REDIS_PORT);
+    }
+
+
+    // 分布式锁的几个客户端连的是固定地址，秒杀流程用不到
+    @MockBean(name = "redissonClient")
+    private RedissonClient redissonClient;
+
+    @MockBean(name = "redissonClient2")
+    private RedissonClient redissonClient2;
+
+    @MockBean(name = "redissonClient3")
+    private RedissonClient redissonClient3;
+
+    @Resource
+    private TestRestTemplate restTemplate;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private IVoucherService voucherService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+
+    @Value("${hmdp.seckill.stock-shards:1}")
+    private int stockShards;
+
+    @Test
+    void testSeckillInvariants() throws Exception {
+        Long voucherId = addSeckillVoucher();
+        List<String> tokens = createUsers();
+
+        // 每个用户请求REQUESTS_PER_USER次，按种子打乱顺序
+        List<String> requests = new ArrayList<>(USERS * REQUESTS_PER_USER);
+        for (int i = 0; i < REQUESTS_PER_USER; i++) {
+            requests.addAll(tokens);
+        }
+        Collections.shuffle(requests, new Random(SEED));
+
+        long[] latencies = new long[requests.size()];
+        Map<String, AtomicInteger> successes = new ConcurrentHashMap<>();
+        Map<String, AtomicInteger> failures = new ConcurrentHashMap<>();
+        AtomicInteger next = new AtomicInteger();
+        ExecutorService executorService = Executors.newFixedThreadPool(THREADS);
+        // 所有线程就绪后一起开始
+        CountDownLatch ready = new CountDownLatch(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(THREADS);
+        String url = "/voucher-order/seckill/" + voucherId;
+        for (int t = 0; t < THREADS; t++) {
+            executorService.submit(() -> {
+                try {
+                    ready.countDown();
+                    start.await();
+                    int i;
+                    while ((i = next.getAndIncrement()) < requests.size()) {
+                        String token = requests.get(i);
+                        HttpHeaders headers = new HttpHeaders();
+                        headers.set("authorization", token);
+                        long begin = System.nanoTime();
+                        ResponseEntity<Result> response = restTemplate.exchange(url, HttpMethod.POST, new HttpEntity<>(headers), Result.class);
+                        latencies[i] = System.nanoTime() - begin;
+                        Result result = response.getBody();
+                        if (result != null && Boolean.TRUE.equals(result.getSuccess())) {
+                            successes.computeIfAbsent(token, k -> new AtomicInteger()).incrementAndGet();
+                        } else {
+                            String reason = result == null ? String.valueOf(response.getStatusCodeValue()) : String.valueOf(result.getErrorMsg());
+                            failures.computeIfAbsent(reason, k -> new AtomicInteger()).incrementAndGet();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        executorService.shutdown();
+
+        report(requests.size(), elapsed, latencies, successes.size(), failures);
+
+        // 同一个用户最多成功一次
+        for (Map.Entry<String, AtomicInteger> entry : successes.entrySet()) {
+            assertEquals(1, entry.getValue().get(), entry.getKey() + "重复下单");
+        }
+        // 不超卖，用户比库存多时要卖完
+        int sold = successes.size();
+        assertTrue(sold <= STOCK, "超卖：" + sold);
+        if (USERS >= STOCK) {
+            assertEquals(STOCK, sold, "库存没有卖完");
+        }
+
+        // 订单是异步写库的，等消费线程写完
+        long orders = awaitOrders(voucherId, sold);
+        assertEquals((long) sold, orders, "受理的订单没有全部写库");
+
+        // 数据库里没有重复的(用户, 券)订单
+        List<Map<String, Object>> duplicates = voucherOrderService.listMaps(voucherOrderService.query()
+                .select("user_id", "count(*) AS c")
+                .eq("voucher_id", voucherId)
+                .groupBy("user_id")
+                .having("count(*) > 1")
+                .getWrapper());
+        assertTrue(duplicates.isEmpty(), "数据库有重复订单：" + duplicates);
+
+        // 数据库库存 + 订单数 = 初始库存
+        SeckillVoucher seckillVoucher = seckillVoucherService.getById(voucherId);
+        assertEquals((long) STOCK, seckillVoucher.getStock() + orders, "数据库库存和订单数对不上");
+
+        // Redis库存和数据库一致
+        long redisStock = 0;
+        for (String key : SeckillKeys.stockKeys(voucherId, stockShards, 0)) {
+            String value = stringRedisTemplate.opsForValue().get(key);
+            redisStock += value == null ? 0 : Long.parseLong(value);
+        }
+        assertEquals((long) seckillVoucher.getStock(), redisStock, "Redis库存和数据库库存不一致");
+        // 对账只返回有偏差的券，这张券不能在里面
+        StockDriftDTO drift = seckillVoucherService.reconcileStock().stream()
+                .filter(d -> voucherId.equals(d.getVoucherId()))
+                .findFirst()
+                .orElse(null);
+        assertNull(drift, "对账发现库存偏差：" + drift);
+    }
+
+    private Long addSeckillVoucher() {
+        Voucher voucher = new Voucher();
+        voucher.setShopId(1L);
+        voucher.setTitle("并发测试券");
+        voucher.setPayValue(100L);
+        voucher.setActualValue(1000L);
+        voucher.setType(1);
+        voucher.setStatus(1);
+        voucher.setStock(STOCK);
+        voucher.setBeginTime(LocalDateTime.now().minusMinutes(1));
+        voucher.setEndTime(LocalDateTime.now().plusHours(1));
+        voucherService.addSeckillVoucher(voucher);
+        return voucher.getId();
+    }
+
+    // 直接把登录信息写进Redis，token就是登录拦截器查的key
+    private List<String> createUsers() {
+        List<String> tokens = new ArrayList<>(USERS);
+        for (int i = 0; i < USERS; i++) {
+            tokens.add(RedisConstants.LOGIN_USER_KEY + "harness-" + i);
+        }
+        for (int from = 0; from < USERS; from += 1000) {
+            int to = Math.min(from + 1000, USERS);
+            int offset = from;
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (int i = offset; i < to; i++) {
+                    Map<String, String> user = new HashMap<>();
+                    user.put("id", String.valueOf(USER_ID_BASE + i));
+                    user.put("nickName", "user_" + i);
+                    user.put("icon", "");
+                    stringConnection.hMSet(tokens.get(i), user);
+                    stringConnection.expire(tokens.get(i), RedisConstants.LOGIN_USER_TTL);
+                }
+                return null;
+            });
+        }
+        return tokens;
+    }
+
+    private long awaitOrders(Long voucherId, long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        long orders;
+        while ((orders = voucherOrderService.query().eq("voucher_id", voucherId).count()) < expected
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        return orders;
+    }
+
+    private static void report(int requests, long elapsedNanos, long[] latencies, int sold, Map<String, AtomicInteger> failures) {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.println("用户数：" + USERS + "，库存：" + STOCK + "，请求数：" + requests + "，线程数：" + THREADS + "，种子：" + SEED);
+        System.out.println("成功：" + sold + "，失败：" + failures);
+        System.out.println("吞吐量：" + String.format("%.1f", requests * 1e9 / elapsedNanos) + "请求/秒，总耗时："
+                + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + "ms");
+        System.out.println("延迟(ms) p50：" + millis(percentile(sorted, 0.50))
+                + "，p99：" + millis(percentile(sorted, 0.99))
+                + "，最大：" + millis(sorted[sorted.length - 1]));
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.2f", nanos / 1e6);
+    }
+}
@@ -0,0 +1,42 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTest {
+
+    @Test
+    void testNoFalseNegativeAndFpp() {
+        BloomFilter filter = new BloomFilter(100000, 0.01);
+        for (long id = 1; id <= 100000; id++) {
+            filter.put(id);
+        }
+        for (long id = 1; id <= 100000; id++) {
+            assertTrue(filter.mightContain(id));
+        }
+        // 不存在的id误判率接近配置的1%
+        int falsePositives = 0;
+        for (long id = 100001; id <= 200000; id++) {
+            if (filter.mightContain(id)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 1500, "误判" + falsePositives + "次");
+    }
+
+    @Test
+    void testRedisBitLayout() {
+        BloomFilter filter = new BloomFilter(64, 3);
+        filter.put(42L);
+        byte[] bits = filter.toByteArray();
+        // 和SETBIT一致，offset对应第offset/8个字节从高位数第offset%8位
+        for (long offset : filter.offsets(42L)) {
+            assertTrue((bits[(int) (offset / 8)] & (1 << (7 - offset % 8))) != 0);
+        }
+        // 从Redis读回的位图得到同样的结果
+        BloomFilter copy = filter.copyWith(bits);
+        assertTrue(copy.mightContain(42L));
+        assertTrue(copy.mightContain("42"));
+    }
+}
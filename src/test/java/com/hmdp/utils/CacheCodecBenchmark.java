@@ -0,0 +1,86 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存编解码对比：Hutool JSON vs 二进制，数据是商铺详情和逻辑过期包装的商铺
+ * 看每次编码、解码的耗时，main方法带上了GC分析，gc.alloc.rate.norm是每次操作分配的字节数，编码后的大小在启动时打印
+ * 运行：main方法，或者 java -cp target/test-classes:... org.openjdk.jmh.Main CacheCodecBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CacheCodecBenchmark {
+
+    @Param({"json", "binary"})
+    public String codecName;
+
+    // shop：queryWithPassThrough缓存的商铺；logical：queryWithLogicalExpire缓存的RedisData
+    @Param({"shop", "logical"})
+    public String payload;
+
+    private CacheCodec codec;
+
+    private Object value;
+
+    private byte[] bytes;
+
+    @Setup
+    public void setUp() {
+        codec = "binary".equals(codecName) ? new BinaryCacheCodec() : new JsonCacheCodec();
+        Shop shop = CacheCodecTest.shop();
+        if ("logical".equals(payload)) {
+            RedisData redisData = new RedisData();
+            redisData.setExpireTime(LocalDateTime.now().plusMinutes(30));
+            redisData.setData(shop);
+            value = redisData;
+        } else {
+            value = shop;
+        }
+        bytes = codec.encode(value);
+        System.out.println(codecName + "/" + payload + "编码后：" + bytes.length + "字节");
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return codec.encode(value);
+    }
+
+    @Benchmark
+    public Object decode() {
+        if ("logical".equals(payload)) {
+            return codec.decodeWithLogicalExpire(bytes, Shop.class);
+        }
+        return codec.decode(bytes, Shop.class);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(CacheCodecBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,92 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.entity.Voucher;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CacheCodecTest {
+
+    private final BinaryCacheCodec binary = new BinaryCacheCodec();
+
+    private final JsonCacheCodec json = new JsonCacheCodec();
+
+    static Shop shop() {
+        Shop shop = new Shop();
+        shop.setId(1L);
+        shop.setName("103茶餐厅");
+        shop.setTypeId(1L);
+        shop.setImages("https://qcloud.dpfile.com/pc/jiclIsCKmOI2arxKN1Uf0Hx3PucIJH8q0QSz-Z8llzcN56-_QiKuOvyio1OOxsRtFoXqu0G3iT2T27qat3WhLVEuLYk00OmSS1IdNpm8K8sG4JN9RIm2mTKcbLtc2o2vfCF2ubeXzk49OsGrXt_KYDCngOyCwZK-s3fqawWswzk.jpg");
+        shop.setArea("大关");
+        shop.setAddress("金华路锦昌文华苑29号");
+        shop.setX(120.149192);
+        shop.setY(30.316078);
+        shop.setAvgPrice(80L);
+        shop.setSold(4215);
+        shop.setComments(3035);
+        shop.setScore(37);
+        shop.setOpenHours("10:00-22:00");
+        shop.setCreateTime(LocalDateTime.of(2021, 12, 22, 18, 10, 39));
+        shop.setUpdateTime(LocalDateTime.of(2022, 1, 13, 17, 32, 19));
+        return shop;
+    }
+
+    @Test
+    void testRoundTrip() {
+        Shop shop = shop();
+        assertEquals(shop, binary.decode(binary.encode(shop), Shop.class));
+
+        UserDTO user = new UserDTO();
+        user.setId(1010L);
+        user.setNickName("user_x");
+        assertEquals(user, binary.decode(binary.encode(user), UserDTO.class));
+
+        Voucher voucher = new Voucher();
+        voucher.setId(-3L);
+        voucher.setTitle("50元代金券");
+        voucher.setPayValue(4750L);
+        voucher.setBeginTime(LocalDateTime.of(2022, 1, 4, 9, 42, 39, 123456789));
+        assertEquals(voucher, binary.decode(binary.encode(voucher), Voucher.class));
+
+        ShopType shopType = new ShopType();
+        shopType.setId(1L);
+        shopType.setName("美食");
+        shopType.setSort(1);
+        List<ShopType> list = binary.decodeList(binary.encode(Arrays.asList(shopType, shopType)), ShopType.class);
+        assertEquals(Arrays.asList(shopType, shopType), list);
+    }
+
+    @Test
+    void testLogicalExpireBothFormats() {
+        RedisData redisData = new RedisData();
+        redisData.setExpireTime(LocalDateTime.of(2022, 1, 1, 0, 0, 0));
+        redisData.setData(shop());
+        for (CacheCodec codec : Arrays.<CacheCodec>asList(binary, json)) {
+            byte[] bytes = codec.encode(redisData);
+            // 每段数据只有一个编解码器能识别
+            assertEquals(codec == binary, binary.canDecode(bytes));
+            assertEquals(codec == json, json.canDecode(bytes));
+            RedisData decoded = codec.decodeWithLogicalExpire(bytes, Shop.class);
+            assertEquals(redisData.getExpireTime(), decoded.getExpireTime());
+            assertEquals(shop(), decoded.getData());
+        }
+        // 数据为空
+        redisData.setData(null);
+        assertNull(binary.decodeWithLogicalExpire(binary.encode(redisData), Shop.class).getData());
+    }
+
+    @Test
+    void testBinaryIsSmaller() {
+        int binarySize = binary.encode(shop()).length;
+        int jsonSize = json.encode(shop()).length;
+        // 不写字段名，binary至少比json小四分之一
+        assertTrue(binarySize * 4 <= jsonSize * 3, () -> "json：" + jsonSize + "字节，binary：" + binarySize + "字节");
+    }
+}
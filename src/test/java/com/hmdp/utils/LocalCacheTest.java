@@ -0,0 +1,96 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LocalCacheTest {
+
+    @Test
+    void testEvictLeastRecentlyUsed() {
+        // 每个key占 64 + 4 * 2 + 100 = 172字节，放得下3个
+        LocalCache cache = new LocalCache(600, 1, TimeUnit.MINUTES);
+        cache.put("k:01", "a", null, 100, cache.version());
+        cache.put("k:02", "b", null, 100, cache.version());
+        cache.put("k:03", "c", null, 100, cache.version());
+        // 访问第一个，淘汰的就是第二个
+        assertNotNull(cache.get("k:01"));
+        cache.put("k:04", "d", null, 100, cache.version());
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("k:02"));
+        assertEquals("a", cache.get("k:01").getValue());
+        assertTrue(cache.bytes() <= 600);
+    }
+
+    @Test
+    void testStaleReadDiscarded() {
+        LocalCache cache = new LocalCache(1024, 1, TimeUnit.MINUTES);
+        // 查Redis期间收到了失效消息，查到的值不放进本地
+        long version = cache.version();
+        cache.invalidate("k:1");
+        cache.put("k:1", "old", null, 10, version);
+        assertNull(cache.get("k:1"));
+
+        cache.put("k:1", "new", null, 10, cache.version());
+        assertEquals("new", cache.get("k:1").getValue());
+    }
+
+    @Test
+    void testExpire() throws InterruptedException {
+        LocalCache cache = new LocalCache(1024, 50, TimeUnit.MILLISECONDS);
+        cache.put("k:1", null, LocalDateTime.now().minusSeconds(1), 0, cache.version());
+        // 缓存的空值和逻辑过期
+        LocalCache.Entry entry = cache.get("k:1");
+        assertNotNull(entry);
+        assertNull(entry.getValue());
+        assertTrue(entry.isLogicallyExpired());
+
+        Thread.sleep(100);
+        assertNull(cache.get("k:1"));
+        assertEquals(0L, cache.bytes());
+    }
+
+    @Test
+    void testConcurrentAccessKeepsByteCount() throws Exception {
+        LocalCache cache = new LocalCache(20_000, 1, TimeUnit.MINUTES);
+        int threads = 8;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        Future<?>[] futures = new Future<?>[threads];
+        for (int t = 0; t < threads; t++) {
+            futures[t] = executorService.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < 100_000; i++) {
+                    String key = "k:" + random.nextInt(500);
+                    int op = random.nextInt(10);
+                    if (op < 7) {
+                        cache.get(key);
+                    } else if (op < 9) {
+                        cache.put(key, "v", null, random.nextInt(100), cache.version());
+                    } else {
+                        cache.invalidate(key);
+                    }
+                }
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executorService.shutdown();
+
+        // 并发读写后占用的字节数还是准的：删掉所有key后回到0
+        assertTrue(cache.bytes() <= 20_000 + 8 * (64 + 5 * 2 + 100));
+        for (int i = 0; i < 500; i++) {
+            cache.invalidate("k:" + i);
+        }
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.bytes());
+    }
+}
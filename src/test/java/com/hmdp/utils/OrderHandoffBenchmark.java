@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下单请求线程交给分区消费线程的两种队列对比：ArrayBlockingQueue vs 无锁环形队列
+ * 7个下单线程对应一个分区的消费线程，看入队和出队的吞吐量，加上 -prof gc 可以看每个订单分配的内存
+ * 运行：main方法，或者 java -cp target/test-classes:... org.openjdk.jmh.Main OrderHandoffBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class OrderHandoffBenchmark {
+
+    @Param({"queue", "ring"})
+    public String handoff;
+
+    private OrderHandoff queue;
+
+    private final AtomicLong ids = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        queue = "ring".equals(handoff)
+                ? new OrderRingBuffer(65536, OrderRingBuffer.WaitStrategy.PARK)
+                : new BlockingQueueHandoff(65536);
+    }
+
+    // 入队成功的订单数，队列满了返回false的不算
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class OfferCounter {
+        public long offered;
+    }
+
+    // 消费线程取出的订单数
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class DrainCounter {
+        public long drained;
+
+        final List<VoucherOrder> batch = new ArrayList<>(100);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(7)
+    public boolean offer(OfferCounter counter) {
+        long id = ids.incrementAndGet();
+        boolean offered = queue.offer(id, id, 1L, System.currentTimeMillis());
+        if (offered) {
+            counter.offered++;
+        }
+        return offered;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public int drain(DrainCounter counter) throws InterruptedException {
+        // 队列空的时候不进drain，避免下单线程都停了以后消费线程一直阻塞，迭代结束不了
+        if (queue.size() == 0) {
+            return 0;
+        }
+        counter.batch.clear();
+        queue.drain(counter.batch, 100, 0);
+        counter.drained += counter.batch.size();
+        return counter.batch.size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(OrderHandoffBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
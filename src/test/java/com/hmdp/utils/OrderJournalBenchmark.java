@@ -0,0 +1,148 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下单接口入队的开销：只入队 vs 追加预写日志再入队 vs 追加日志并等待组提交刷盘
+ * 7个下单线程对应一个分区的消费线程，刷盘线程每5毫秒刷一次，同一个刷盘周期里的追加合并成一次fsync
+ * 运行：main方法，或者 java -cp target/test-classes:... org.openjdk.jmh.Main OrderJournalBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class OrderJournalBenchmark {
+
+    // none：不写日志；async：写日志，定时刷盘；sync：写日志并等刷盘
+    @Param({"none", "async", "sync"})
+    public String journal;
+
+    @Param({"queue", "ring"})
+    public String handoff;
+
+    private File dir;
+
+    private OrderHandoff queue;
+
+    private OrderPartition partition;
+
+    private ScheduledExecutorService flusher;
+
+    private final AtomicLong ids = new AtomicLong();
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+        queue = "ring".equals(handoff)
+                ? new OrderRingBuffer(65536, OrderRingBuffer.WaitStrategy.PARK)
+                : new BlockingQueueHandoff(65536);
+        if ("none".equals(journal)) {
+            partition = new OrderPartition("p", queue);
+            return;
+        }
+        dir = Files.createTempDirectory("order-journal").toFile();
+        OrderJournal orderJournal = new OrderJournal(new File(dir, "partition-0"), 1048576, "sync".equals(journal));
+        partition = new OrderPartition("p", queue, orderJournal);
+        flusher = Executors.newSingleThreadScheduledExecutor();
+        flusher.scheduleWithFixedDelay(orderJournal::flush, 5, 5, TimeUnit.MILLISECONDS);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        if (flusher != null) {
+            flusher.shutdownNow();
+            flusher = null;
+        }
+        if (dir != null) {
+            FileSystemUtils.deleteRecursively(dir);
+            dir = null;
+        }
+    }
+
+    // 入队成功的订单数，队列满了返回false的不算
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class OfferCounter {
+        public long offered;
+    }
+
+    // 消费线程取出的订单数
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class DrainCounter {
+        public long drained;
+
+        final List<VoucherOrder> batch = new ArrayList<>(100);
+    }
+
+    @Benchmark
+    @Group("admission")
+    @GroupThreads(7)
+    public boolean offer(OfferCounter counter) throws IOException {
+        long id = ids.incrementAndGet();
+        boolean offered = partition.offer(id, id, 1L, System.currentTimeMillis());
+        if (offered) {
+            counter.offered++;
+        }
+        return offered;
+    }
+
+    @Benchmark
+    @Group("admission")
+    @GroupThreads(1)
+    public int drain(DrainCounter counter) throws InterruptedException {
+        // 队列空的时候不进drain，避免下单线程都停了以后消费线程一直阻塞，迭代结束不了
+        if (queue.size() == 0) {
+            return 0;
+        }
+        counter.batch.clear();
+        partition.drain(counter.batch, 100, 0);
+        // 推进检查点，删除处理完的日志段
+        OrderJournal orderJournal = partition.getJournal();
+        if (orderJournal != null) {
+            orderJournal.take(counter.batch.size());
+            orderJournal.checkpoint();
+        }
+        counter.drained += counter.batch.size();
+        return counter.batch.size();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+                .include(OrderJournalBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,162 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderJournalTest {
+
+    @TempDir
+    File root;
+
+    private static VoucherOrder order(long id) {
+        VoucherOrder voucherOrder = new VoucherOrder();
+        voucherOrder.setId(id);
+        voucherOrder.setUserId(1000 + id);
+        voucherOrder.setVoucherId(10L);
+        return voucherOrder;
+    }
+
+    @Test
+    void testRecoverAfterCheckpoint() throws IOException {
+        // 每段4条，追加10条，处理完前6条
+        OrderJournal journal = new OrderJournal(new File(root, "gen-1/partition-0"), 4, false);
+        for (long id = 1; id <= 10; id++) {
+            append(journal, order(id));
+        }
+        assertEquals(0, journal.take(6));
+        journal.checkpoint();
+
+        // 没有关闭日志直接读，相当于JVM崩溃后重启
+        List<VoucherOrder> recovered = OrderJournal.recover(root);
+        assertEquals(4, recovered.size());
+        assertEquals(7L, recovered.get(0).getId());
+        assertEquals(1010L, recovered.get(3).getUserId());
+        // 第一段已经整个处理完，被删除了
+        assertEquals(2, new File(root, "gen-1/partition-0").listFiles((d, name) -> name.endsWith(".log")).length);
+    }
+
+    @Test
+    void testHoldBlocksCheckpoint() throws IOException {
+        OrderJournal journal = new OrderJournal(new File(root, "gen-1/partition-0"), 4, false);
+        for (long id = 1; id <= 5; id++) {
+            append(journal, order(id));
+        }
+        long seq = journal.take(5);
+        // 第3条在重试，检查点停在它前面
+        journal.hold(seq + 2);
+        journal.checkpoint();
+        assertEquals(Arrays.asList(3L, 4L, 5L), ids(OrderJournal.recover(root)));
+
+        journal.release(seq + 2);
+        assertTrue(OrderJournal.recover(root).isEmpty());
+    }
+
+    @Test
+    void testNewGenerationReplacesOld() throws IOException {
+        OrderJournal old = new OrderJournal(new File(root, "gen-1/partition-0"), 4, false);
+        append(old, order(1));
+        append(old, order(2));
+
+        // 重启：读出旧日志，追加到新一代后删除旧的
+        List<VoucherOrder> recovered = OrderJournal.recover(root);
+        File generation = new File(root, "gen-2");
+        OrderJournal journal = new OrderJournal(new File(generation, "partition-0"), 4, false);
+        for (VoucherOrder voucherOrder : recovered) {
+            append(journal, voucherOrder);
+        }
+        journal.flush();
+        OrderJournal.deleteOthers(root, generation);
+
+        assertFalse(new File(root, "gen-1").exists());
+        assertEquals(Arrays.asList(1L, 2L), ids(OrderJournal.recover(root)));
+    }
+
+    @Test
+    void testRecoverSkipsHoles() throws IOException {
+        // 环形队列的序号当日志位置，序号1的线程还没写完就崩溃了，后面的记录照样读出来
+        OrderJournal journal = new OrderJournal(new File(root, "gen-1/partition-0"), 4, false);
+        journal.write(0, 1, 1001, 10);
+        journal.write(2, 3, 1003, 10);
+        journal.write(5, 6, 1006, 10);
+        assertEquals(Arrays.asList(1L, 3L, 6L), ids(OrderJournal.recover(root)));
+    }
+
+    @Test
+    void testConcurrentRingOffers() throws Exception {
+        // 多个线程往环形队列下单，日志在分区锁外面按环形队列的序号写，所有订单都能读出来
+        OrderJournal journal = new OrderJournal(new File(root, "gen-1/partition-0"), 1000, false);
+        OrderPartition partition = new OrderPartition("p", new OrderRingBuffer(16384, OrderRingBuffer.WaitStrategy.PARK), journal);
+        int threads = 4;
+        int perThread = 2000;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int offset = t * perThread;
+            workers[t] = new Thread(() -> {
+                for (int i = 1; i <= perThread; i++) {
+                    try {
+                        assertTrue(partition.offer(order(offset + i)));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        List<Long> ids = ids(OrderJournal.recover(root));
+        Collections.sort(ids);
+        assertEquals(threads * perThread, ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            assertEquals(i + 1L, ids.get(i));
+        }
+    }
+
+    @Test
+    void testRingRejectsWhenJournalFails() throws Exception {
+        // 第2条写日志失败，订单被拒绝，队列里留一个占位，后面的订单照常写
+        OrderJournal journal = new OrderJournal(new File(root, "gen-1/partition-0"), 4, false) {
+            @Override
+            public void write(long seq, long orderId, long userId, long voucherId) throws IOException {
+                if (orderId == 2) {
+                    throw new IOException("磁盘满了");
+                }
+                super.write(seq, orderId, userId, voucherId);
+            }
+        };
+        OrderPartition partition = new OrderPartition("p", new OrderRingBuffer(16, OrderRingBuffer.WaitStrategy.PARK), journal);
+        assertTrue(partition.offer(order(1)));
+        assertThrows(IOException.class, () -> partition.offer(order(2)));
+        assertTrue(partition.offer(order(3)));
+
+        List<VoucherOrder> batch = new ArrayList<>();
+        partition.drain(batch, 10, 0);
+        assertEquals(3, batch.size());
+        assertNull(batch.get(1));
+        assertEquals(3L, batch.get(2).getId());
+        assertEquals(Arrays.asList(1L, 3L), ids(OrderJournal.recover(root)));
+    }
+
+    private static void append(OrderJournal journal, VoucherOrder voucherOrder) throws IOException {
+        journal.append(voucherOrder.getId(), voucherOrder.getUserId(), voucherOrder.getVoucherId());
+    }
+
+    private static List<Long> ids(List<VoucherOrder> voucherOrders) {
+        List<Long> ids = new ArrayList<>(voucherOrders.size());
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            ids.add(voucherOrder.getId());
+        }
+        return ids;
+    }
+}
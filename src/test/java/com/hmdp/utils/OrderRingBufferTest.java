@@ -0,0 +1,72 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OrderRingBufferTest {
+
+    @Test
+    void testFull() throws InterruptedException {
+        // 容量取到2的幂
+        OrderRingBuffer ring = new OrderRingBuffer(3, OrderRingBuffer.WaitStrategy.PARK);
+        assertEquals(4, ring.capacity());
+        for (long id = 1; id <= 4; id++) {
+            assertTrue(ring.offer(id, id, 1L, id));
+        }
+        assertFalse(ring.offer(5L, 5L, 1L, 5L));
+        assertEquals(1L, ring.headCreateMillis());
+
+        // 读走两个后空出两个槽位
+        List<VoucherOrder> batch = new ArrayList<>();
+        ring.drain(batch, 2, 0);
+        assertEquals(2, batch.size());
+        assertEquals(2, ring.size());
+        assertTrue(ring.offer(5L, 5L, 1L, 5L));
+        assertTrue(ring.offer(6L, 6L, 1L, 6L));
+        assertFalse(ring.offer(7L, 7L, 1L, 7L));
+    }
+
+    @Test
+    void testMultiProducer() throws InterruptedException {
+        OrderRingBuffer ring = new OrderRingBuffer(1024, OrderRingBuffer.WaitStrategy.YIELD);
+        int producers = 4;
+        int perProducer = 100000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            long userId = p;
+            threads[p] = new Thread(() -> {
+                for (long i = 0; i < perProducer; i++) {
+                    // 满了就重试，用订单id记录每个生产者的顺序
+                    while (!ring.offer(userId * perProducer + i, userId, 1L, System.currentTimeMillis())) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+
+        // 每个生产者的订单都按顺序读到，不多不少
+        long[] next = new long[producers];
+        int total = 0;
+        List<VoucherOrder> batch = new ArrayList<>(100);
+        while (total < producers * perProducer) {
+            batch.clear();
+            ring.drain(batch, 100, 1);
+            for (VoucherOrder voucherOrder : batch) {
+                int p = voucherOrder.getUserId().intValue();
+                assertEquals(p * (long) perProducer + next[p]++, voucherOrder.getId());
+            }
+            total += batch.size();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.headCreateMillis());
+    }
+}
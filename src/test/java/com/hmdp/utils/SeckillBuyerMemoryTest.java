@@ -0,0 +1,193 @@
+package com.hmdp.utils;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.LoggerFactory;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+import redis.embedded.RedisServer;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 下单记录的内存对比：集合编码 vs 位图编码，在内嵌Redis里用MEMORY USAGE统计实际占用
+ * 不连共用的Redis，写入的几百万个成员只在内嵌Redis里
+ * 跑一次要一分多钟，默认的mvn test不跑，用 mvn test -Pslow-tests -Dtest=SeckillBuyerMemoryTest 单独跑
+ */
+@Tag("slow")
+class SeckillBuyerMemoryTest {
+
+    private static final long VOUCHER_ID = 1L;
+
+    private static final RedisScript<Long> MEMORY_USAGE =
+            new DefaultRedisScript<>("return redis.call('memory', 'usage', KEYS[1], 'samples', '0')", Long.class);
+
+    private static RedisServer redisServer;
+
+    private static LettuceConnectionFactory connectionFactory;
+
+    private static StringRedisTemplate stringRedisTemplate;
+
+    @BeforeAll
+    static void startRedis() throws IOException {
+        // 没有启动Spring，logback默认是DEBUG，每条Redis命令都会打日志
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(Level.INFO);
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        redisServer = new RedisServer(port);
+        redisServer.start();
+        connectionFactory = new LettuceConnectionFactory("127.0.0.1", port);
+        connectionFactory.afterPropertiesSet();
+        stringRedisTemplate = new StringRedisTemplate(connectionFactory);
+    }
+
+    @AfterAll
+    static void stopRedis() throws IOException {
+        connectionFactory.destroy();
+        redisServer.stop();
+    }
+
+    @Test
+    void testDenseIdsFavorBitmap() {
+        // 用户id连续：新用户集中抢购，1..100万落在16个块里
+        Usage usage = measure("连续id", range(1, 1000000));
+        assertEquals(16, usage.chunks);
+        assertTrue(usage.bitmapBytes * 100 < usage.setBytes, usage.toString());
+    }
+
+    @Test
+    void testOnePercentIdsFavorBitmap() {
+        // 用户id分散在一亿个用户里，每块大约650人
+        Usage usage = measure("1%的用户", sample(100000000, 1000000));
+        assertTrue(usage.bitmapBytes < usage.setBytes, usage.toString());
+    }
+
+    @Test
+    void testSparseIdsFavorSet() {
+        // 很稀疏，每块不到10人，位图反而更大
+        Usage usage = measure("0.01%的用户", sample(100000000, 10000));
+        assertTrue(usage.bitmapBytes > usage.setBytes, usage.toString());
+    }
+
+    @Test
+    void testSmallSaleFavorsSet() {
+        // 少于512个整数的集合是intset编码，很紧凑
+        Usage usage = measure("小活动", sample(1000000, 500));
+        assertTrue(usage.bitmapBytes > usage.setBytes, usage.toString());
+    }
+
+    private static class Usage {
+        private final String name;
+        private final int buyers;
+        private final long setBytes;
+        private final long bitmapBytes;
+        private final int chunks;
+
+        Usage(String name, int buyers, long setBytes, long bitmapBytes, int chunks) {
+            this.name = name;
+            this.buyers = buyers;
+            this.setBytes = setBytes;
+            this.bitmapBytes = bitmapBytes;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public String toString() {
+            return name + " | " + buyers + " | " + setBytes + " | " + bitmapBytes + " | " + chunks;
+        }
+    }
+
+    private Usage measure(String name, List<Long> userIds) {
+        long setBytes = writeSet(userIds);
+        Set<String> chunks = new LinkedHashSet<>();
+        long bitmapBytes = writeBitmap(userIds, chunks);
+        Usage usage = new Usage(name, userIds.size(), setBytes, bitmapBytes, chunks.size());
+        System.out.println("场景 | 下单人数 | 集合(字节) | 位图(字节) | 位图块数");
+        System.out.println(usage);
+        return usage;
+    }
+
+    private long writeSet(List<Long> userIds) {
+        String key = SeckillKeys.orderKey(VOUCHER_ID, 0, 1);
+        for (int from = 0; from < userIds.size(); from += 10000) {
+            List<Long> batch = userIds.subList(from, Math.min(from + 10000, userIds.size()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Long userId : batch) {
+                    stringConnection.sAdd(key, userId.toString());
+                }
+                return null;
+            });
+        }
+        long bytes = memoryUsage(key);
+        stringRedisTemplate.delete(key);
+        return bytes;
+    }
+
+    private long writeBitmap(List<Long> userIds, Set<String> chunks) {
+        for (int from = 0; from < userIds.size(); from += 10000) {
+            List<Long> batch = userIds.subList(from, Math.min(from + 10000, userIds.size()));
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                for (Long userId : batch) {
+                    String chunk = SeckillKeys.chunkKey(VOUCHER_ID, userId, 1);
+                    chunks.add(chunk);
+                    stringConnection.setBit(chunk, SeckillKeys.offset(userId, 1), true);
+                }
+                return null;
+            });
+        }
+        long bytes = 0;
+        for (String chunk : chunks) {
+            bytes += memoryUsage(chunk);
+        }
+        stringRedisTemplate.delete(chunks);
+        return bytes;
+    }
+
+    private long memoryUsage(String key) {
+        // 通用的execute按字节数组解析返回值，整数回复会报错，所以放在脚本里执行；SAMPLES 0表示统计集合的所有成员，不抽样估算
+        Long bytes = stringRedisTemplate.execute(MEMORY_USAGE, Collections.singletonList(key));
+        assertNotNull(bytes, key + "不存在");
+        return bytes;
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> userIds = new ArrayList<>((int) (to - from + 1));
+        for (long userId = from; userId <= to; userId++) {
+            userIds.add(userId);
+        }
+        return userIds;
+    }
+
+    // 从1到bound里随机挑count个不重复的用户id
+    private static List<Long> sample(long bound, int count) {
+        Random random = new Random(42);
+        Set<Long> userIds = new LinkedHashSet<>(count * 2);
+        while (userIds.size() < count) {
+            userIds.add(1 + (long) (random.nextDouble() * bound));
+        }
+        List<Long> list = new ArrayList<>(userIds);
+        Collections.sort(list);
+        return list;
+    }
+}
@@ -0,0 +1,76 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SeckillKeysTest {
+
+    @Test
+    void testUnshardedKeysShareHashTag() {
+        List<String> keys = new ArrayList<>(SeckillKeys.stockKeys(10L, 1, 0));
+        keys.addAll(Arrays.asList(
+                SeckillKeys.timeKey(10L),
+                SeckillKeys.timeKey(10L, 0, 1),
+                SeckillKeys.leaseKey(10L, 0, 1),
+                SeckillKeys.budgetKey(10L),
+                SeckillKeys.buyerKey(10L, 1234567L, 1, false),
+                SeckillKeys.buyerKey(10L, 1234567L, 1, true)));
+        for (String key : keys) {
+            // 集群只按第一个{}里的内容算slot
+            assertEquals("10", hashTag(key), key);
+        }
+    }
+
+    @Test
+    void testScriptKeysShareHomeShardTag() {
+        // 用户1234567在4个分片里的主分片是3，秒杀脚本用到的key都在这个分片
+        int home = SeckillKeys.homeShard(1234567L, 4);
+        assertEquals(3, home);
+        for (String key : Arrays.asList(
+                SeckillKeys.timeKey(10L, home, 4),
+                SeckillKeys.stockKey(10L, home, 4),
+                SeckillKeys.leaseKey(10L, home, 4),
+                SeckillKeys.chunksKey(10L, home, 4),
+                SeckillKeys.buyerKey(10L, 1234567L, 4, false),
+                SeckillKeys.buyerKey(10L, 1234567L, 4, true))) {
+            assertEquals("10:3", hashTag(key), key);
+        }
+    }
+
+    @Test
+    void testShardsUseDifferentTags() {
+        Set<String> tags = new HashSet<>();
+        for (String key : SeckillKeys.stockKeys(10L, 4, 0)) {
+            tags.add(hashTag(key));
+        }
+        assertEquals(4, tags.size());
+    }
+
+    @Test
+    void testStockKeysStartFromHomeShard() {
+        assertEquals(Arrays.asList("seckill:stock:{10:2}", "seckill:stock:{10:3}", "seckill:stock:{10:0}", "seckill:stock:{10:1}"),
+                SeckillKeys.stockKeys(10L, 4, SeckillKeys.homeShard(6L, 4)));
+        assertEquals(Arrays.asList("seckill:stock:{10}"), SeckillKeys.stockKeys(10L, 1, 0));
+    }
+
+    @Test
+    void testBitmapPosition() {
+        // 不分片时第65536个用户在第1块的第0位
+        assertEquals("seckill:order:{10}:bitmap:1", SeckillKeys.chunkKey(10L, 65536L, 1));
+        assertEquals(0L, SeckillKeys.offset(65536L, 1));
+        // 分片时主分片里的用户id除以分片数
+        assertEquals("seckill:order:{10:3}:bitmap:0", SeckillKeys.chunkKey(10L, 7L, 4));
+        assertEquals(1L, SeckillKeys.offset(7L, 4));
+    }
+
+    private static String hashTag(String key) {
+        return key.substring(key.indexOf('{') + 1, key.indexOf('}'));
+    }
+}
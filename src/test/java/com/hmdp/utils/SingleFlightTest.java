@@ -0,0 +1,63 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void testConcurrentCallsShareOneExecution() throws Exception {
+        SingleFlight singleFlight = new SingleFlight();
+        AtomicInteger executions = new AtomicInteger();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        int threads = 50;
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+        Future<?>[] futures = new Future<?>[threads];
+        for (int i = 0; i < threads; i++) {
+            futures[i] = executorService.submit(() -> singleFlight.execute("cache:shop:1", () -> {
+                executions.incrementAndGet();
+                started.countDown();
+                // 模拟查数据库，其他线程在这期间进来
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return "shop";
+            }, 5, TimeUnit.SECONDS));
+        }
+        started.await();
+        Thread.sleep(100);
+        release.countDown();
+        for (Future<?> future : futures) {
+            assertEquals("shop", future.get());
+        }
+        executorService.shutdown();
+
+        // 执行的次数取决于有多少线程在第一次执行结束前进来，100ms内应该全部进来了
+        assertEquals(1, executions.get());
+        assertEquals(0, singleFlight.inFlight());
+        // 执行完不缓存结果，下一次重新执行
+        assertEquals("again", singleFlight.execute("cache:shop:1", () -> "again", 1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testFailureIsSharedAndNotRemembered() {
+        SingleFlight singleFlight = new SingleFlight();
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> singleFlight.execute("k", () -> {
+                    throw new IllegalStateException("db down");
+                }, 1, TimeUnit.SECONDS));
+        assertEquals("db down", e.getMessage());
+        assertEquals(1, (int) singleFlight.execute("k", () -> 1, 1, TimeUnit.SECONDS));
+    }
+}